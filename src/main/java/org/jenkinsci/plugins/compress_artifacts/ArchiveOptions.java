@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * How artifacts of a build get compressed, as configured on {@link CompressingArtifactManagerFactory} when the build started.
+ * Sent along to the agent, where the compression level of each file is decided.
+ */
+final class ArchiveOptions implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String DEFAULT_STORED_EXTENSIONS = "7z apk bz2 deb docker ear gif gz jar jpeg jpg lz4 mp3 mp4 nupkg png rpm tgz war webp whl xz zip zst";
+
+    /** Options of builds started before compression could be configured, to be adjusted by the {@code with} methods. */
+    static final ArchiveOptions DEFAULT = new ArchiveOptions(CompressingArtifactManagerFactory.Compression.DEFAULT, parse(DEFAULT_STORED_EXTENSIONS), false, 0, false, false, false, false, 0);
+
+    /** Amount of data compressed to judge whether a file is worth compressing. */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    /** Files not shrinking below this ratio of their sample are stored. */
+    private static final double SAMPLE_RATIO = 0.9;
+
+    final CompressingArtifactManagerFactory.Compression compression;
+    private final Set<String> storedExtensions;
+    private final boolean sampleCompressibility;
+    private final int threads;
+    /** Whether large files go to {@link BlobStore}. */
+    final boolean deduplicate;
+    /** Whether files unchanged since the previous build are taken from its archive rather than sent again. */
+    final boolean reuseUnchanged;
+    /** Whether small files are deflated with a {@link DeflateDictionary}. */
+    final boolean dictionary;
+    /** Whether small files are deflated together in {@link ZipWriter.SolidBlock}s. */
+    final boolean solid;
+    /** Number of archives artifacts are spread over, see {@link ShardedStorage}, 0 or 1 meaning a single one. */
+    final int shards;
+
+    private ArchiveOptions(CompressingArtifactManagerFactory.Compression compression, Set<String> storedExtensions, boolean sampleCompressibility, int threads, boolean deduplicate, boolean reuseUnchanged, boolean dictionary, boolean solid, int shards) {
+        this.compression = compression;
+        this.storedExtensions = storedExtensions;
+        this.sampleCompressibility = sampleCompressibility;
+        this.threads = threads;
+        this.deduplicate = deduplicate;
+        this.reuseUnchanged = reuseUnchanged;
+        this.dictionary = dictionary;
+        this.solid = solid;
+        this.shards = shards;
+    }
+
+    private static Set<String> parse(String storedExtensions) {
+        Set<String> extensions = new HashSet<>();
+        for (String extension : storedExtensions.toLowerCase(Locale.ENGLISH).split("[\\s,]+")) {
+            extension = extension.startsWith(".") ? extension.substring(1) : extension;
+            if (!extension.isEmpty()) {
+                extensions.add(extension);
+            }
+        }
+        return Collections.unmodifiableSet(extensions);
+    }
+
+    ArchiveOptions withCompression(CompressingArtifactManagerFactory.Compression compression) {
+        return new ArchiveOptions(compression, storedExtensions, sampleCompressibility, threads, deduplicate, reuseUnchanged, dictionary, solid, shards);
+    }
+
+    /**
+     * @param storedExtensions whitespace or comma separated extensions of files to store without compressing them
+     */
+    ArchiveOptions withStoredExtensions(String storedExtensions) {
+        return new ArchiveOptions(compression, parse(storedExtensions), sampleCompressibility, threads, deduplicate, reuseUnchanged, dictionary, solid, shards);
+    }
+
+    /**
+     * @param sampleCompressibility whether to store files whose beginning does not compress well
+     */
+    ArchiveOptions withSampleCompressibility(boolean sampleCompressibility) {
+        return new ArchiveOptions(compression, storedExtensions, sampleCompressibility, threads, deduplicate, reuseUnchanged, dictionary, solid, shards);
+    }
+
+    /**
+     * @param threads how many threads may compress at once, 0 meaning as many as the agent has processors
+     */
+    ArchiveOptions withThreads(int threads) {
+        return new ArchiveOptions(compression, storedExtensions, sampleCompressibility, threads, deduplicate, reuseUnchanged, dictionary, solid, shards);
+    }
+
+    /**
+     * @param deduplicate whether to keep large files once for all builds
+     */
+    ArchiveOptions withDeduplicate(boolean deduplicate) {
+        return new ArchiveOptions(compression, storedExtensions, sampleCompressibility, threads, deduplicate, reuseUnchanged, dictionary, solid, shards);
+    }
+
+    /**
+     * @param reuseUnchanged whether to copy large files unchanged since the previous build from its archive
+     */
+    ArchiveOptions withReuseUnchanged(boolean reuseUnchanged) {
+        return new ArchiveOptions(compression, storedExtensions, sampleCompressibility, threads, deduplicate, reuseUnchanged, dictionary, solid, shards);
+    }
+
+    /**
+     * @param dictionary whether to deflate small files with a dictionary trained from the previous build
+     */
+    ArchiveOptions withDictionary(boolean dictionary) {
+        return new ArchiveOptions(compression, storedExtensions, sampleCompressibility, threads, deduplicate, reuseUnchanged, dictionary, solid, shards);
+    }
+
+    /**
+     * @param solid whether to deflate small files together rather than each on its own
+     */
+    ArchiveOptions withSolid(boolean solid) {
+        return new ArchiveOptions(compression, storedExtensions, sampleCompressibility, threads, deduplicate, reuseUnchanged, dictionary, solid, shards);
+    }
+
+    /**
+     * @param shards number of archives to spread artifacts over, written side by side
+     */
+    ArchiveOptions withShards(int shards) {
+        return new ArchiveOptions(compression, storedExtensions, sampleCompressibility, threads, deduplicate, reuseUnchanged, dictionary, solid, shards);
+    }
+
+    /**
+     * Whether content hashes of large files are computed on the agent and recorded in the archive.
+     */
+    boolean hashing() {
+        return deduplicate || reuseUnchanged;
+    }
+
+    /**
+     * Number of threads to compress with, to be called on the agent.
+     */
+    int threads() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Decides how to compress a file.
+     * @return Deflate level, {@link Deflater#NO_COMPRESSION} meaning the file is to be stored as is
+     */
+    int level(File file) throws IOException {
+        if (compression.level == Deflater.NO_COMPRESSION) {
+            return Deflater.NO_COMPRESSION;
+        }
+        String name = file.getName().toLowerCase(Locale.ENGLISH);
+        for (int dot = name.indexOf('.'); dot != -1; dot = name.indexOf('.', dot + 1)) {
+            // Both "gz" and "tar.gz" match "archive.tar.gz"
+            if (storedExtensions.contains(name.substring(dot + 1))) {
+                return Deflater.NO_COMPRESSION;
+            }
+        }
+        if (sampleCompressibility && !compressible(file)) {
+            return Deflater.NO_COMPRESSION;
+        }
+        return compression.level;
+    }
+
+    /**
+     * Compresses the beginning of a file as fast as possible to see whether it shrinks.
+     */
+    private static boolean compressible(File file) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (length < sample.length && (read = in.read(sample, length, sample.length - length)) != -1) {
+                length += read;
+            }
+        }
+        if (length < 1024) {
+            return true; // too little to tell, and too little to matter
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[SAMPLE_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed < length * SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+}
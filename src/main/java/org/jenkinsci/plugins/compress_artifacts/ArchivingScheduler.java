@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+
+/**
+ * Archives artifacts in the background once builds have handed them over, a few at a time.
+ * Agents take turns, so that one sending many archives does not hold up the others,
+ * and archives of a build are written in the order they were submitted.
+ * Submitting waits while too many archives are queued already.
+ */
+final class ArchivingScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(ArchivingScheduler.class.getName());
+
+    /** Maximum number of archives written at once. */
+    static int THREADS = Integer.getInteger(ArchivingScheduler.class.getName() + ".threads", 2);
+
+    /** Maximum number of archives waiting to be written, beyond which builds wait to submit theirs. */
+    static int QUEUE_SIZE = Integer.getInteger(ArchivingScheduler.class.getName() + ".queueSize", 100);
+
+    /**
+     * Work writing an archive.
+     */
+    interface Work {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private static final class Task {
+        final String node;
+        final File archive;
+        final String description;
+        final Work work;
+
+        Task(String node, File archive, String description, Work work) {
+            this.node = node;
+            this.archive = archive;
+            this.description = description;
+            this.work = work;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+    /** Queued tasks of each agent, the next agent to be served first. */
+    private static final Map<String, Deque<Task>> queues = new LinkedHashMap<>();
+    /** Queued tasks of each archive, in the order they were submitted. */
+    private static final Map<File, Deque<Task>> archives = new HashMap<>();
+    /** Archives being written. */
+    private static final Set<File> running = new HashSet<>();
+    private static int queued;
+    private static ExecutorService pool;
+
+    private ArchivingScheduler() {}
+
+    /**
+     * Queues work on an archive, waiting first if the queue is full.
+     * @param node name of the agent the artifacts come from, agents being served in turn
+     */
+    static void submit(String node, File archive, String description, Work work) throws InterruptedException {
+        synchronized (LOCK) {
+            while (queued >= QUEUE_SIZE) {
+                LOCK.wait();
+            }
+            Task task = new Task(node, archive, description, work);
+            queues.computeIfAbsent(node, k -> new ArrayDeque<>()).add(task);
+            archives.computeIfAbsent(archive, k -> new ArrayDeque<>()).add(task);
+            queued++;
+            dispatch();
+        }
+    }
+
+    /**
+     * Number of archives waiting for their turn to be worked on.
+     */
+    static int queueLength() {
+        synchronized (LOCK) {
+            return queued;
+        }
+    }
+
+    /**
+     * Number of archives being worked on.
+     */
+    static int runningCount() {
+        synchronized (LOCK) {
+            return running.size();
+        }
+    }
+
+    /**
+     * Waits for queued and running work on an archive to be done.
+     */
+    static void await(File archive) throws InterruptedException {
+        synchronized (LOCK) {
+            while (archives.containsKey(archive) || running.contains(archive)) {
+                LOCK.wait();
+            }
+        }
+    }
+
+    /**
+     * Drops queued work on an archive, then waits for any running one to be done.
+     */
+    static void cancel(File archive) throws InterruptedException {
+        synchronized (LOCK) {
+            Deque<Task> tasks = archives.remove(archive);
+            if (tasks != null) {
+                for (Task task : tasks) {
+                    Deque<Task> queue = queues.get(task.node);
+                    queue.remove(task);
+                    if (queue.isEmpty()) {
+                        queues.remove(task.node);
+                    }
+                    queued--;
+                }
+                LOGGER.log(Level.FINE, "Cancelled {0} pending archiving of {1}", new Object[] {tasks.size(), archive});
+                LOCK.notifyAll();
+            }
+            while (running.contains(archive)) {
+                LOCK.wait();
+            }
+        }
+    }
+
+    /**
+     * Starts queued tasks while there is room for them.
+     */
+    private static void dispatch() {
+        while (running.size() < THREADS) {
+            Task task = next();
+            if (task == null) {
+                return;
+            }
+            running.add(task.archive);
+            queued--;
+            LOCK.notifyAll();
+            if (pool == null) {
+                pool = Executors.newCachedThreadPool(new SchedulerThreadFactory());
+            }
+            pool.execute(() -> run(task));
+        }
+    }
+
+    /**
+     * Takes the first task of the next agent in turn which is also the first of its archive, not being written already.
+     * That agent then goes last.
+     */
+    private static @CheckForNull Task next() {
+        for (Deque<Task> queue : queues.values()) {
+            for (Iterator<Task> it = queue.iterator(); it.hasNext();) {
+                Task task = it.next();
+                Deque<Task> tasks = archives.get(task.archive);
+                if (running.contains(task.archive) || tasks.peekFirst() != task) {
+                    continue;
+                }
+                it.remove();
+                tasks.removeFirst();
+                if (tasks.isEmpty()) {
+                    archives.remove(task.archive);
+                }
+                queues.remove(task.node);
+                if (!queue.isEmpty()) {
+                    queues.put(task.node, queue);
+                }
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private static void run(Task task) {
+        try {
+            task.work.run();
+        } catch (IOException | InterruptedException | RuntimeException x) {
+            LOGGER.log(Level.WARNING, "Failed to archive artifacts of " + task.description, x);
+        } finally {
+            synchronized (LOCK) {
+                running.remove(task.archive);
+                LOCK.notifyAll();
+                dispatch();
+            }
+        }
+    }
+
+    private static final class SchedulerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Archiving artifacts #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what happens to artifacts, the numbers being published over JMX.
+ * Updating them costs next to nothing, so they are always kept.
+ */
+public final class ArtifactMetrics implements ArtifactMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(ArtifactMetrics.class.getName());
+
+    static final String NAME = "org.jenkinsci.plugins.compress_artifacts:type=ArtifactMetrics";
+
+    /**
+     * Durations of some operation.
+     */
+    static final class Timing {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param start when the operation started, from {@link System#nanoTime}
+         */
+        void since(long start) {
+            add(System.nanoTime() - start);
+        }
+
+        /**
+         * Records one operation made of several steps, whose durations were added up.
+         */
+        void add(long duration) {
+            count.increment();
+            nanos.add(duration);
+            max.accumulateAndGet(duration, Math::max);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long millis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos.sum());
+        }
+
+        long maxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(max.get());
+        }
+    }
+
+    static final Timing archive = new Timing();
+    static final Timing hash = new Timing();
+    static final Timing transfer = new Timing();
+    static final Timing finish = new Timing();
+    static final LongAdder bytesArchived = new LongAdder();
+    static final LongAdder bytesStored = new LongAdder();
+    static final Timing indexLoad = new Timing();
+    static final LongAdder indexFileLoads = new LongAdder();
+    static final LongAdder archiveOpens = new LongAdder();
+    static final LongAdder leakedStreams = new LongAdder();
+    static final LongAdder migratedBuilds = new LongAdder();
+    static final LongAdder migrationSavedBytes = new LongAdder();
+
+    ArtifactMetrics() {}
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new ArtifactMetrics(), name);
+            }
+        } catch (JMException x) {
+            LOGGER.log(Level.WARNING, "Failed to publish artifact metrics", x);
+        }
+    }
+
+    @Terminator
+    public static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException x) {
+            LOGGER.log(Level.FINE, "Failed to unpublish artifact metrics", x);
+        }
+    }
+
+    @Override public long getArchiveCount() {
+        return archive.count();
+    }
+
+    @Override public long getArchiveMillis() {
+        return archive.millis();
+    }
+
+    @Override public long getArchiveMaxMillis() {
+        return archive.maxMillis();
+    }
+
+    @Override public long getHashMillis() {
+        return hash.millis();
+    }
+
+    @Override public long getTransferMillis() {
+        return transfer.millis();
+    }
+
+    @Override public long getFinishMillis() {
+        return finish.millis();
+    }
+
+    @Override public long getBytesArchived() {
+        return bytesArchived.sum();
+    }
+
+    @Override public long getBytesStored() {
+        return bytesStored.sum();
+    }
+
+    @Override public double getCompressionRatio() {
+        long archived = bytesArchived.sum();
+        return archived > 0 ? (double) bytesStored.sum() / archived : 1;
+    }
+
+    @Override public long getIndexLoads() {
+        return indexLoad.count();
+    }
+
+    @Override public long getIndexFileLoads() {
+        return indexFileLoads.sum();
+    }
+
+    @Override public long getIndexLoadMillis() {
+        return indexLoad.millis();
+    }
+
+    @Override public long getIndexLoadMaxMillis() {
+        return indexLoad.maxMillis();
+    }
+
+    @Override public long getArchiveOpens() {
+        return archiveOpens.sum();
+    }
+
+    @Override public long getOpenStreams() {
+        return OpenStreams.count();
+    }
+
+    @Override public Map<String, Integer> getOpenStreamsByArchive() {
+        return OpenStreams.byArchive();
+    }
+
+    @Override public List<String> listOpenStreams(String archive) {
+        return OpenStreams.list(new File(archive));
+    }
+
+    @Override public long getLeakedStreams() {
+        return leakedStreams.sum();
+    }
+
+    @Override public long getContentCacheHits() {
+        return ZipIndex.contentCache().hits();
+    }
+
+    @Override public long getContentCacheMisses() {
+        return ZipIndex.contentCache().misses();
+    }
+
+    @Override public long getContentCacheBytes() {
+        return ZipIndex.contentCache().weight();
+    }
+
+    @Override public long getBlockCacheHits() {
+        return ZipIndex.blockCache().hits();
+    }
+
+    @Override public long getBlockCacheMisses() {
+        return ZipIndex.blockCache().misses();
+    }
+
+    @Override public long getBlockCacheBytes() {
+        return ZipIndex.blockCache().weight();
+    }
+
+    @Override public int getWriters() {
+        return WriteThrottle.writers();
+    }
+
+    @Override public int getWritersWaiting() {
+        return WriteThrottle.queueLength();
+    }
+
+    @Override public long getWriteWaitMillis() {
+        return WriteThrottle.waitedMillis();
+    }
+
+    @Override public int getBackgroundQueueLength() {
+        return ArchivingScheduler.queueLength();
+    }
+
+    @Override public int getBackgroundRunning() {
+        return ArchivingScheduler.runningCount();
+    }
+
+    @Override public long getMigratedBuilds() {
+        return migratedBuilds.sum();
+    }
+
+    @Override public int getMigrationPendingBuilds() {
+        return ArtifactMigration.pending;
+    }
+
+    @Override public long getMigrationSavedBytes() {
+        return migrationSavedBytes.sum();
+    }
+
+}
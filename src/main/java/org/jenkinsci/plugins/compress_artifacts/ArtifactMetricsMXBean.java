@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of archiving and reading artifacts, published over JMX as {@value ArtifactMetrics#NAME}.
+ * Times are in milliseconds; counts and totals are since the controller started.
+ */
+public interface ArtifactMetricsMXBean {
+
+    /** Number of times artifacts were archived. */
+    long getArchiveCount();
+
+    /** Total time spent archiving, waiting for a turn included. */
+    long getArchiveMillis();
+
+    long getArchiveMaxMillis();
+
+    /** Total time spent hashing artifacts on agents, to find those not worth sending. */
+    long getHashMillis();
+
+    /** Total time spent compressing artifacts on agents and receiving them. */
+    long getTransferMillis();
+
+    /** Total time spent completing archives once received: copying, moving, writing central directories and index files. */
+    long getFinishMillis();
+
+    /** Total size of artifacts archived, before compression. */
+    long getBytesArchived();
+
+    /** Total size by which archives grew, central directories included. */
+    long getBytesStored();
+
+    /** {@link #getBytesStored} divided by {@link #getBytesArchived}. */
+    double getCompressionRatio();
+
+    /** Number of times the index of an archive was loaded, from an index file or by parsing its central directory. */
+    long getIndexLoads();
+
+    /** Number of times loading an index could use an index file. */
+    long getIndexFileLoads();
+
+    /** Total time spent loading indexes. */
+    long getIndexLoadMillis();
+
+    long getIndexLoadMaxMillis();
+
+    /** Number of times an archive was opened for reading. */
+    long getArchiveOpens();
+
+    /** Number of streams returned by {@code VirtualFile.open()} not yet closed. */
+    long getOpenStreams();
+
+    /** Number of streams not yet closed by the path of their archive. */
+    Map<String, Integer> getOpenStreamsByArchive();
+
+    /** Describes the streams not yet closed of an archive, given its path. */
+    List<String> listOpenStreams(String archive);
+
+    /** Number of streams found to have been dropped without being closed. */
+    long getLeakedStreams();
+
+    long getContentCacheHits();
+
+    long getContentCacheMisses();
+
+    long getContentCacheBytes();
+
+    long getBlockCacheHits();
+
+    long getBlockCacheMisses();
+
+    long getBlockCacheBytes();
+
+    /** Number of archives being written on the controller. */
+    int getWriters();
+
+    /** Number of archives waiting for their turn to be written. */
+    int getWritersWaiting();
+
+    /** Total time spent waiting for a turn to write or for the write rate limit. */
+    long getWriteWaitMillis();
+
+    /** Number of archives waiting to be archived in the background. */
+    int getBackgroundQueueLength();
+
+    /** Number of archives being archived in the background. */
+    int getBackgroundRunning();
+
+    /** Number of older builds whose artifacts were compressed by {@link ArtifactMigration}. */
+    long getMigratedBuilds();
+
+    /** Number of older builds found with artifacts left to compress. */
+    int getMigrationPendingBuilds();
+
+    /** Disk space freed by compressing artifacts of older builds. */
+    long getMigrationSavedBytes();
+
+}
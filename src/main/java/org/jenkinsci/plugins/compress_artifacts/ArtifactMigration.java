@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.BuildListener;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+import jenkins.model.ArtifactManager;
+import jenkins.model.ArtifactManagerConfiguration;
+import jenkins.model.ArtifactManagerFactory;
+import jenkins.model.Jenkins;
+import jenkins.model.StandardArtifactManager;
+import jenkins.util.VirtualFile;
+
+/**
+ * Compresses artifacts of builds from before {@link CompressingArtifactManagerFactory} was configured, once it is set to migrate them.
+ * Each build is archived from its {@code archive} directory as if it had just been built, then switched over to
+ * {@link CompressingArtifactManager}, its directory being deleted last, so that it can be read all along.
+ * Builds are taken one at a time with a pause in between, writing going through {@link WriteThrottle} like any other.
+ * Whatever was not migrated when Jenkins stops is picked up next time, as builds not yet switched over.
+ * Builds which turn out to keep an artifact manager of their own are marked with {@link #SKIPPED}, so as not to be compressed again in vain.
+ */
+@Extension public final class ArtifactMigration extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(ArtifactMigration.class.getName());
+
+    /** Time to wait after migrating a build, leaving the disk to others. */
+    static long PAUSE_MILLIS = Long.getLong(ArtifactMigration.class.getName() + ".pauseMillis", 1000);
+
+    /** File of a build whose artifacts could not be migrated, as it does not pick its artifact manager from the configured factories. */
+    static final String SKIPPED = "archive.unmigrated";
+
+    /** Number of builds found to migrate by the current or last run, less those migrated since. */
+    static volatile int pending;
+
+    public ArtifactMigration() {
+        super("Compress artifacts of older builds");
+    }
+
+    @Override public long getRecurrencePeriod() {
+        return TimeUnit.HOURS.toMillis(1);
+    }
+
+    /**
+     * The factory builds would get their artifact manager from, if it is set to migrate older builds.
+     */
+    private static @CheckForNull CompressingArtifactManagerFactory factory() {
+        List<ArtifactManagerFactory> factories = ArtifactManagerConfiguration.get().getArtifactManagerFactories();
+        if (factories.isEmpty() || !(factories.get(0) instanceof CompressingArtifactManagerFactory)) {
+            return null;
+        }
+        CompressingArtifactManagerFactory factory = (CompressingArtifactManagerFactory) factories.get(0);
+        return factory.isMigrate() ? factory : null;
+    }
+
+    /**
+     * A build which still has an {@code archive} directory.
+     */
+    private static final class Candidate {
+        final Job<?,?> job;
+        final int number;
+
+        Candidate(Job<?,?> job, int number) {
+            this.job = job;
+            this.number = number;
+        }
+    }
+
+    @Override protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        if (factory() == null) {
+            pending = 0;
+            return;
+        }
+        // Looking at build directories first spares loading builds without artifacts
+        List<Candidate> candidates = new ArrayList<>();
+        for (Job<?,?> job : Jenkins.get().allItems(Job.class)) {
+            File[] dirs = job.getBuildDir().listFiles();
+            if (dirs == null) {
+                continue;
+            }
+            for (File dir : dirs) {
+                if (dir.getName().matches("[0-9]+") && new File(dir, "archive").isDirectory() && !new File(dir, SKIPPED).exists()) {
+                    candidates.add(new Candidate(job, Integer.parseInt(dir.getName())));
+                }
+            }
+        }
+        pending = candidates.size();
+        if (candidates.isEmpty()) {
+            return;
+        }
+        listener.getLogger().println("Found " + candidates.size() + " builds with artifacts to compress");
+        BuildListener buildListener = new StreamBuildListener(listener.getLogger(), StandardCharsets.UTF_8);
+        int migrated = 0;
+        long saved = 0;
+        for (Candidate candidate : candidates) {
+            CompressingArtifactManagerFactory factory = factory();
+            if (factory == null) {
+                listener.getLogger().println("Stopped as no longer configured to migrate artifacts");
+                break;
+            }
+            Run<?,?> build = candidate.job.getBuildByNumber(candidate.number);
+            try {
+                if (build != null && !build.isBuilding() && build.getArtifactManager() instanceof StandardArtifactManager) {
+                    long difference = migrate(build, factory.options(), buildListener);
+                    if (difference != -1) {
+                        migrated++;
+                        saved += difference;
+                        listener.getLogger().println("Compressed artifacts of " + build.getFullDisplayName() + " (" + migrated + " of " + candidates.size()
+                                + ", " + Functions.humanReadableByteSize(saved) + " saved so far)");
+                        Thread.sleep(PAUSE_MILLIS);
+                    }
+                }
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "Failed to compress artifacts of " + candidate.job.getFullName() + " #" + candidate.number, x);
+                listener.getLogger().println("Failed to compress artifacts of " + candidate.job.getFullName() + " #" + candidate.number + ": " + x);
+            }
+            pending--;
+        }
+        listener.getLogger().println("Compressed artifacts of " + migrated + " builds, saving " + Functions.humanReadableByteSize(saved));
+    }
+
+    /**
+     * Moves the artifacts of a build from its {@code archive} directory to a compressed archive and switches the build over to it.
+     * @return number of bytes saved, or -1 if the build could not be switched over, its directory being kept and the build marked with {@link #SKIPPED}
+     */
+    static long migrate(Run<?,?> build, ArchiveOptions options, BuildListener listener) throws IOException, InterruptedException {
+        File dir = new File(build.getRootDir(), "archive");
+        File archive = new File(build.getRootDir(), "archive.zip");
+        // Left over by a migration which did not complete
+        CompressingArtifactManager.delete(archive);
+
+        Map<String,String> artifacts = new TreeMap<>();
+        long size = 0;
+        Path root = dir.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isRegularFile(path)) {
+                    String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+                    artifacts.put(name, name);
+                    size += Files.size(path);
+                }
+            }
+        }
+
+        CompressingArtifactManager.archive(archive, null, new FilePath(dir), new Launcher.LocalLauncher(listener), listener, artifacts, options);
+        VirtualFile compressed = CompressingArtifactManager.root(archive);
+        for (String name : artifacts.keySet()) {
+            if (compressed.child(name).length() != Files.size(root.resolve(name))) {
+                CompressingArtifactManager.delete(archive);
+                throw new IOException("Artifact " + name + " did not make it intact to " + archive);
+            }
+        }
+
+        // Picks the configured factory, now that the build has none of its own
+        ArtifactManager manager = build.pickArtifactManager();
+        if (!(manager instanceof CompressingArtifactManager)) {
+            CompressingArtifactManager.delete(archive);
+            Files.write(new File(build.getRootDir(), SKIPPED).toPath(), ("Keeps its own " + manager.getClass().getName() + "\n").getBytes(StandardCharsets.UTF_8));
+            listener.getLogger().println(build.getFullDisplayName() + " keeps its own " + manager.getClass().getName() + ", not migrating it again");
+            return -1;
+        }
+        long stored = stored(archive);
+        Util.deleteRecursive(dir);
+        ArtifactMetrics.migratedBuilds.increment();
+        ArtifactMetrics.migrationSavedBytes.add(size - stored);
+        return size - stored;
+    }
+
+    /**
+     * Size of an archive, or of its shards.
+     */
+    private static long stored(File archive) throws IOException {
+        int shards = ShardedStorage.shards(archive);
+        if (shards == 0) {
+            return archive.length();
+        }
+        long stored = 0;
+        for (int i = 0; i < shards; i++) {
+            stored += ShardedStorage.shard(archive, i).length();
+        }
+        return stored;
+    }
+
+}
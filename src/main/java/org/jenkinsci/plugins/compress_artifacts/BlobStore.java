@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipException;
+import jenkins.model.Jenkins;
+
+/**
+ * Store of large artifacts shared by the archives of all builds, each kept once whatever the number of builds archiving it.
+ * A blob is an archive with a single entry, named after the SHA-256 of its content,
+ * next to a count of the archive entries referring to it; it is deleted along with the last of them.
+ * Hashes sent by agents are never trusted: content is hashed again here before being stored or referred to.
+ * Counts of builds deleted without their artifact manager knowing, as when deleting a whole job, are corrected by {@link BlobSweep}.
+ */
+final class BlobStore {
+
+    private static final Logger LOGGER = Logger.getLogger(BlobStore.class.getName());
+
+    /** Files smaller than this stay in the archive of their build. */
+    static final long MIN_SIZE = Long.getLong(BlobStore.class.getName() + ".minSize", 256 * 1024);
+
+    private static final String ENTRY = "blob";
+
+    /** Guards reference counts. */
+    private static final Object LOCK = new Object();
+
+    /** Blobs referred to by archives still being written, with how many of them, which a sweep would not find yet. */
+    private static final Map<String, Integer> pending = new HashMap<>(); // guarded by LOCK
+
+    /** Blobs whose references changed since the current sweep started, so that what it counted may be out of date. */
+    private static final Set<String> touched = new HashSet<>(); // guarded by LOCK
+
+    private BlobStore() {}
+
+    private static File root() {
+        String root = System.getProperty(BlobStore.class.getName() + ".root");
+        return root != null ? new File(root) : new File(Jenkins.get().getRootDir(), "compress-artifacts-blobs");
+    }
+
+    /**
+     * Checks whether anything was ever stored.
+     */
+    static boolean exists() {
+        return root().isDirectory();
+    }
+
+    private static File blob(String hash) {
+        return new File(root(), hash.substring(0, 2) + File.separator + hash + ".zip");
+    }
+
+    private static File references(String hash) {
+        return new File(root(), hash.substring(0, 2) + File.separator + hash + ".refs");
+    }
+
+    /**
+     * Looks up the archive holding some content.
+     */
+    static ZipIndex index(byte[] hash) throws IOException {
+        File blob = blob(ContentHasher.hex(hash));
+        ZipIndex index = ZipIndex.of(blob);
+        if (index == null) {
+            throw new FileNotFoundException(blob + " (No such file or directory)");
+        }
+        return index;
+    }
+
+    /**
+     * The entry of a blob with its content.
+     */
+    static ZipIndex.Entry entry(ZipIndex blob, byte[] hash) throws IOException {
+        ZipIndex.Entry entry = blob.entry(ENTRY);
+        if (entry == null) {
+            throw new ZipException("Invalid blob " + ContentHasher.hex(hash));
+        }
+        return entry;
+    }
+
+    /**
+     * Drops a reference to some content, deleting it if that was the last.
+     */
+    static void release(String hash) throws IOException {
+        synchronized (LOCK) {
+            touched.add(hash);
+            long count = readReferences(hash) - 1;
+            if (count > 0) {
+                writeReferences(hash, count);
+                return;
+            }
+            File blob = blob(hash);
+            ZipIndex.invalidate(blob);
+            Files.deleteIfExists(blob.toPath());
+            Files.deleteIfExists(references(hash).toPath());
+            LOGGER.log(Level.FINE, "Deleted blob {0}, no longer referenced", hash);
+        }
+    }
+
+    /**
+     * Stores some content unless already stored, and adds a reference to it on behalf of an archive being written,
+     * which must be {@linkplain #settle settled} once written or not.
+     * @param source archive with the content
+     * @param entry entry of the archive with the content, whose hash it claims to be
+     * @throws IOException also if the content does not match the hash
+     */
+    static void store(String hash, ZipIndex source, ZipIndex.Entry entry) throws IOException {
+        // Whoever wrote the source may not have been able to read what is stored under that hash, so check it first
+        MessageDigest digest = ContentHasher.sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = source.open(entry)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        if (!MessageDigest.isEqual(digest.digest(), ContentHasher.unhex(hash))) {
+            throw new IOException("Content of " + entry.name + " does not match its hash " + hash);
+        }
+        File blob = blob(hash);
+        synchronized (LOCK) {
+            if (blob.isFile()) {
+                retain(hash);
+                return;
+            }
+        }
+        Files.createDirectories(blob.getParentFile().toPath());
+        // Copy outside of the lock, then publish atomically
+        File temp = File.createTempFile(hash, ".tmp", blob.getParentFile());
+        try {
+            try (ZipWriter writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(temp)), 0);
+                    InputStream raw = source.openRaw(entry)) {
+                writer.copyEntry(ENTRY, entry, entry, raw);
+                writer.finish();
+            }
+            synchronized (LOCK) {
+                if (!blob.isFile()) { // unless stored meanwhile by another build
+                    Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    LOGGER.log(Level.FINE, "Stored blob {0}", hash);
+                }
+                retain(hash);
+            }
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private static void retain(String hash) throws IOException {
+        assert Thread.holdsLock(LOCK);
+        touched.add(hash);
+        pending.merge(hash, 1, Integer::sum);
+        writeReferences(hash, readReferences(hash) + 1);
+    }
+
+    /**
+     * Lets sweeps count references to blobs stored on behalf of an archive, now written or abandoned.
+     */
+    static void settle(Collection<String> hashes) {
+        synchronized (LOCK) {
+            for (String hash : hashes) {
+                touched.add(hash);
+                pending.computeIfPresent(hash, (k, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+    }
+
+    /**
+     * Adds the blobs an archive refers to, as they are listed in its index.
+     * Does not go through the cache of {@link ZipIndex}, so as not to evict archives being read.
+     */
+    static void count(File archive, Map<String, Long> counts) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(archive.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException x) {
+            return;
+        }
+        IndexFile indexFile = IndexFile.open(archive, attributes);
+        Collection<ZipIndex.Entry> entries;
+        if (indexFile != null) {
+            entries = indexFile.entries();
+        } else {
+            try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+                entries = ZipIndex.readCentralDirectory(channel, attributes.size()).entries;
+            }
+        }
+        for (ZipIndex.Entry entry : entries) {
+            if (entry.blob) {
+                counts.merge(ContentHasher.hex(entry.hash), 1L, Long::sum);
+            }
+        }
+    }
+
+    /**
+     * Starts counting references afresh.
+     */
+    static void beginSweep() {
+        synchronized (LOCK) {
+            touched.clear();
+        }
+    }
+
+    /**
+     * Sets the reference count of every blob to what was counted in all archives since {@link #beginSweep},
+     * deleting those no longer referred to, except for blobs whose references changed meanwhile.
+     * @return number of blobs deleted
+     */
+    static int sweep(Map<String, Long> counts) throws IOException {
+        File root = root();
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".refs"));
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String hash = file.getName().substring(0, file.getName().length() - ".refs".length());
+                synchronized (LOCK) {
+                    if (touched.contains(hash) || pending.containsKey(hash)) {
+                        continue;
+                    }
+                    long count = counts.getOrDefault(hash, 0L);
+                    if (count == 0) {
+                        File blob = blob(hash);
+                        ZipIndex.invalidate(blob);
+                        Files.deleteIfExists(blob.toPath());
+                        Files.deleteIfExists(file.toPath());
+                        LOGGER.log(Level.FINE, "Deleted blob {0}, no longer referenced by any build", hash);
+                        deleted++;
+                    } else if (readReferences(hash) != count) {
+                        writeReferences(hash, count);
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private static long readReferences(String hash) throws IOException {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(references(hash).toPath()), StandardCharsets.US_ASCII).trim());
+        } catch (NoSuchFileException x) {
+            return 0;
+        } catch (NumberFormatException x) {
+            throw new IOException("Corrupted reference count of blob " + hash, x);
+        }
+    }
+
+    private static void writeReferences(String hash, long count) throws IOException {
+        File references = references(hash);
+        File temp = new File(references.getPath() + ".tmp");
+        Files.write(temp.toPath(), Long.toString(count).getBytes(StandardCharsets.US_ASCII));
+        Files.move(temp.toPath(), references.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
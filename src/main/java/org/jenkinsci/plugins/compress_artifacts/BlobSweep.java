@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Recounts references to {@link BlobStore} from the archives of all builds, deleting blobs none refers to anymore.
+ * Deleting a job deletes its builds without telling their artifact manager, which would otherwise leave their blobs behind.
+ * Archives are found through build directories, so builds need not be loaded.
+ * A count is given up should jobs move meanwhile, as archives would then be missed.
+ */
+@Extension public final class BlobSweep extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(BlobSweep.class.getName());
+
+    /** Set whenever an item moves, which the current count may have missed. */
+    private static volatile boolean moved;
+
+    public BlobSweep() {
+        super("Delete unreferenced compressed artifacts");
+    }
+
+    @Override public long getRecurrencePeriod() {
+        return TimeUnit.DAYS.toMillis(1);
+    }
+
+    @Override protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        if (!BlobStore.exists()) {
+            return;
+        }
+        moved = false;
+        BlobStore.beginSweep();
+        Map<String, Long> counts = new HashMap<>();
+        for (Job<?,?> job : Jenkins.get().allItems(Job.class)) {
+            File[] dirs = job.getBuildDir().listFiles();
+            if (dirs == null) {
+                continue;
+            }
+            for (File dir : dirs) {
+                if (dir.getName().matches("[0-9]+")) {
+                    for (File archive : archives(dir)) {
+                        try {
+                            BlobStore.count(archive, counts);
+                        } catch (IOException x) {
+                            // Blobs it refers to would be deleted
+                            LOGGER.log(Level.WARNING, "Failed to read " + archive + ", not deleting any blob", x);
+                            listener.getLogger().println("Failed to read " + archive + ", not deleting any blob: " + x);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        if (moved) {
+            listener.getLogger().println("Items moved while counting references, trying again next time");
+            return;
+        }
+        int deleted = BlobStore.sweep(counts);
+        listener.getLogger().println("Deleted " + deleted + " blobs no longer referenced");
+    }
+
+    /**
+     * Archives in a build directory, sharded or not.
+     */
+    private static List<File> archives(File dir) {
+        File archive = new File(dir, "archive.zip");
+        List<File> archives = new ArrayList<>(ShardedStorage.shardFiles(archive));
+        archives.add(archive);
+        return archives;
+    }
+
+    @Extension public static final class MoveListener extends ItemListener {
+        @Override public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            moved = true;
+        }
+    }
+
+}
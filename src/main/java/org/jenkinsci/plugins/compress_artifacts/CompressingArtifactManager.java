@@ -26,19 +26,57 @@ package org.jenkinsci.plugins.compress_artifacts;
 
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.StreamBuildListener;
 import hudson.model.Run;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
 import jenkins.model.ArtifactManager;
 import jenkins.util.VirtualFile;
 
+/**
+ * Keeps the artifacts of a build in a compressed archive in its directory.
+ * When archiving asynchronously, the agent still compresses artifacts off the workspace, which others may use once the build moves on,
+ * but into {@link #STAGING}, from where they are added to the archive in the background; what is left staged at startup is queued again.
+ * Whatever happens in the background is appended to {@link #LOG}, the build log being closed by then.
+ */
 final class CompressingArtifactManager extends ArtifactManager {
 
+    private static final Logger LOGGER = Logger.getLogger(CompressingArtifactManager.class.getName());
+
+    /** Directory of a build holding artifacts compressed but not archived yet, one numbered directory each time they are handed over. */
+    static final String STAGING = "archive.staging";
+
+    /** File of a staged directory naming the agent the artifacts came from. */
+    static final String NODE = "node";
+
+    /** File of a build logging what was archived in the background. */
+    static final String LOG = "archive.log";
+
     private transient Run<?,?> build;
+    /** Null for builds started before compression could be configured. */
+    private final ArchiveOptions options;
+    /** Whether the build only hands artifacts over to {@link ArchivingScheduler}. */
+    private final boolean asynchronous;
 
-    CompressingArtifactManager(Run<?,?> build) {
+    CompressingArtifactManager(Run<?,?> build, ArchiveOptions options, boolean asynchronous) {
+        this.options = options;
+        this.asynchronous = asynchronous;
         onLoad(build);
     }
 
@@ -47,15 +85,154 @@ final class CompressingArtifactManager extends ArtifactManager {
     }
 
     @Override public void archive(FilePath workspace, Launcher launcher, BuildListener listener, Map<String,String> artifacts) throws IOException, InterruptedException {
-        ZipStorage.archive(archive(), workspace, launcher, listener, artifacts);
+        File archive = archive();
+        File previous = previousArchive();
+        ArchiveOptions options = this.options != null ? this.options : ArchiveOptions.DEFAULT;
+        if (asynchronous) {
+            // The workspace may be reused or wiped as soon as the build moves on
+            File staged = stage();
+            Computer computer = workspace.toComputer();
+            String node = computer != null ? computer.getName() : "";
+            try {
+                Files.write(new File(staged, NODE).toPath(), node.getBytes(StandardCharsets.UTF_8));
+                stage(staged, archive, previous, workspace, listener, artifacts, options);
+            } catch (IOException | InterruptedException | RuntimeException x) {
+                Util.deleteRecursive(staged);
+                throw x;
+            }
+            submit(node, staged, previous, options);
+            listener.getLogger().println("Adding " + artifacts.size() + " artifacts to the archive in the background, see " + LOG + " in the build directory");
+        } else {
+            // After anything archived in the background before, should the configuration have changed
+            ArchivingScheduler.await(archive);
+            archive(archive, previous, workspace, launcher, listener, artifacts, options);
+        }
+    }
+
+    static void archive(File archive, @CheckForNull File previous, FilePath workspace, Launcher launcher, BuildListener listener, Map<String,String> artifacts, ArchiveOptions options) throws IOException, InterruptedException {
+        // Once sharded, artifacts added later keep hashing to the same archives
+        if (options.shards > 1 || ShardedStorage.shards(archive) > 0) {
+            ShardedStorage.archive(archive, previous, workspace, launcher, listener, artifacts, options);
+        } else {
+            ZipStorage.archive(archive, previous, workspace, launcher, listener, artifacts, options);
+        }
+    }
+
+    /**
+     * Has the agent compress artifacts into a directory, to be added to the archive by {@link #archiveStaged}.
+     */
+    static void stage(File staged, File archive, @CheckForNull File previous, FilePath workspace, BuildListener listener, Map<String,String> artifacts, ArchiveOptions options) throws IOException, InterruptedException {
+        if (options.shards > 1 || ShardedStorage.shards(archive) > 0) {
+            ShardedStorage.stage(staged, archive, previous, workspace, listener, artifacts, options);
+        } else {
+            ZipStorage.stage(new File(staged, archive.getName()), archive, previous, workspace, listener, artifacts, options);
+        }
+    }
+
+    /**
+     * Adds artifacts compressed by {@link #stage} to the archive.
+     */
+    static void archiveStaged(File archive, @CheckForNull File previous, File staged, ArchiveOptions options, BuildListener listener) throws IOException, InterruptedException {
+        File whole = new File(staged, archive.getName());
+        if (whole.isFile()) {
+            ZipStorage.archiveStaged(archive, previous, whole, options, listener);
+        } else if (!ShardedStorage.shardFiles(whole).isEmpty()) {
+            ShardedStorage.archiveStaged(archive, previous, staged, options, listener);
+        }
+    }
+
+    /**
+     * Creates the next directory to stage artifacts in.
+     */
+    private synchronized File stage() throws IOException {
+        int next = 0;
+        for (File staged : staged(new File(build.getRootDir(), STAGING))) {
+            next = Math.max(next, Integer.parseInt(staged.getName()) + 1);
+        }
+        File staged = new File(build.getRootDir(), STAGING + File.separator + next);
+        Files.createDirectories(staged.toPath());
+        return staged;
+    }
+
+    /**
+     * Lists directories of artifacts staged but not archived yet, in the order they were handed over.
+     */
+    private static List<File> staged(File staging) {
+        File[] dirs = staging.listFiles((dir, name) -> name.matches("[0-9]+"));
+        if (dirs == null) {
+            return Collections.emptyList();
+        }
+        List<File> staged = new ArrayList<>(Arrays.asList(dirs));
+        staged.sort(Comparator.comparingInt(dir -> Integer.parseInt(dir.getName())));
+        return staged;
+    }
+
+    /**
+     * Queues artifacts staged for archiving in the background, after which they are deleted.
+     * Failures are logged to {@link #LOG}, leaving the artifacts staged to be tried again on the next startup.
+     * @param node name of the agent the artifacts came from, taking turns with others
+     */
+    private void submit(String node, File staged, @CheckForNull File previous, ArchiveOptions options) throws InterruptedException {
+        File archive = archive();
+        File log = new File(build.getRootDir(), LOG);
+        ArchivingScheduler.submit(node, archive, build.toString(), () -> {
+            try (OutputStream out = new FileOutputStream(log, true)) {
+                BuildListener listener = new StreamBuildListener(out, StandardCharsets.UTF_8);
+                try {
+                    archiveStaged(archive, previous, staged, options, listener);
+                } catch (IOException | RuntimeException x) {
+                    listener.getLogger().println("Failed to archive artifacts staged in " + staged + ", kept to try again on the next startup: " + x);
+                    throw x;
+                }
+            }
+            Util.deleteRecursive(staged);
+            staged.getParentFile().delete(); // unless more are staged
+        });
+    }
+
+    /**
+     * Queues again whatever was staged but not archived when Jenkins stopped, agents taking turns as they did.
+     */
+    void resume() throws InterruptedException {
+        ArchiveOptions options = this.options != null ? this.options : ArchiveOptions.DEFAULT;
+        for (File staged : staged(new File(build.getRootDir(), STAGING))) {
+            LOGGER.log(Level.INFO, "Resuming archiving of artifacts of {0} staged in {1}", new Object[] {build, staged});
+            String node;
+            try {
+                node = new String(Files.readAllBytes(new File(staged, NODE).toPath()), StandardCharsets.UTF_8);
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "No agent recorded for " + staged, x);
+                node = "";
+            }
+            submit(node, staged, previousArchive(), options);
+        }
     }
 
     @Override public boolean delete() throws IOException, InterruptedException {
-        return ZipStorage.delete(archive());
+        ArchivingScheduler.cancel(archive());
+        Util.deleteRecursive(new File(build.getRootDir(), STAGING));
+        return delete(archive());
+    }
+
+    static boolean delete(File archive) throws IOException, InterruptedException {
+        // Also deletes archives of a build whose sharding did not complete
+        boolean sharded = ShardedStorage.delete(archive);
+        return ZipStorage.delete(archive) || sharded;
     }
 
     @Override public VirtualFile root() {
-        return ZipStorage.root(archive());
+        return root(archive());
+    }
+
+    static VirtualFile root(File archive) {
+        int shards;
+        try {
+            shards = ShardedStorage.shards(archive);
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Failed to read the shards of " + archive, x);
+            shards = 0;
+        }
+        return shards > 0 ? ShardedStorage.root(archive, shards) : ZipStorage.root(archive);
     }
 
 
@@ -63,4 +240,16 @@ final class CompressingArtifactManager extends ArtifactManager {
         return new File(build.getRootDir(), "archive.zip");
     }
 
+    /**
+     * Archive of the previous build, or where its shards are listed, if it was kept by this plugin.
+     */
+    private @CheckForNull File previousArchive() {
+        Run<?,?> previous = build.getPreviousBuild();
+        if (previous == null) {
+            return null;
+        }
+        ArtifactManager manager = previous.getArtifactManager();
+        return manager instanceof CompressingArtifactManager ? ((CompressingArtifactManager) manager).archive() : null;
+    }
+
 }
@@ -25,18 +25,223 @@
 package org.jenkinsci.plugins.compress_artifacts;
 
 import hudson.Extension;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
 import hudson.model.Run;
+import java.io.File;
+import java.util.zip.Deflater;
 import jenkins.model.ArtifactManager;
 import jenkins.model.ArtifactManagerFactory;
 import jenkins.model.ArtifactManagerFactoryDescriptor;
+import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public final class CompressingArtifactManagerFactory extends ArtifactManagerFactory {
 
+    /**
+     * How hard to compress artifacts, trading archiving time on the agent for disk space on the controller.
+     */
+    public enum Compression {
+        STORE("Store (no compression)", Deflater.NO_COMPRESSION),
+        FASTEST("Fastest", Deflater.BEST_SPEED),
+        DEFAULT("Default", Deflater.DEFAULT_COMPRESSION),
+        BEST("Best", Deflater.BEST_COMPRESSION);
+
+        private final String displayName;
+        final int level;
+
+        Compression(String displayName, int level) {
+            this.displayName = displayName;
+            this.level = level;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private Compression compression = Compression.DEFAULT;
+    private String storedExtensions = ArchiveOptions.DEFAULT_STORED_EXTENSIONS;
+    private boolean sampleCompressibility;
+    private int threads;
+    private boolean deduplicate;
+    private boolean reuseUnchanged;
+    private boolean dictionary;
+    private boolean solid;
+    private int shards;
+    private boolean asynchronous;
+    private boolean migrate;
+
     @DataBoundConstructor public CompressingArtifactManagerFactory() {}
 
+    public Compression getCompression() {
+        return compression;
+    }
+
+    @DataBoundSetter public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public String getStoredExtensions() {
+        return storedExtensions;
+    }
+
+    /**
+     * @param storedExtensions extensions of files already compressed, which are stored as is
+     */
+    @DataBoundSetter public void setStoredExtensions(String storedExtensions) {
+        this.storedExtensions = Util.fixNull(storedExtensions).trim();
+    }
+
+    public boolean isSampleCompressibility() {
+        return sampleCompressibility;
+    }
+
+    /**
+     * @param sampleCompressibility whether to also store files whose beginning does not compress well
+     */
+    @DataBoundSetter public void setSampleCompressibility(boolean sampleCompressibility) {
+        this.sampleCompressibility = sampleCompressibility;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads how many threads may compress artifacts at once on the agent, 0 meaning one per processor
+     */
+    @DataBoundSetter public void setThreads(int threads) {
+        this.threads = Math.max(threads, 0);
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * @param deduplicate whether to keep large artifacts once, whatever the number of builds archiving them
+     */
+    @DataBoundSetter public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    public boolean isReuseUnchanged() {
+        return reuseUnchanged;
+    }
+
+    /**
+     * @param reuseUnchanged whether large artifacts identical to those of the previous build are copied from its archive rather than sent by the agent
+     */
+    @DataBoundSetter public void setReuseUnchanged(boolean reuseUnchanged) {
+        this.reuseUnchanged = reuseUnchanged;
+    }
+
+    public boolean isDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @param dictionary whether small artifacts are compressed with a dictionary trained from those of the previous build
+     */
+    @DataBoundSetter public void setDictionary(boolean dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public boolean isSolid() {
+        return solid;
+    }
+
+    /**
+     * @param solid whether small artifacts are compressed together in blocks rather than each on its own
+     */
+    @DataBoundSetter public void setSolid(boolean solid) {
+        this.solid = solid;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @param shards number of archives each build spreads its artifacts over, written side by side, 0 or 1 meaning a single one
+     */
+    @DataBoundSetter public void setShards(int shards) {
+        this.shards = Math.max(shards, 0);
+    }
+
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    /**
+     * @param asynchronous whether builds go on once artifacts are handed over, archiving continuing in the background
+     */
+    @DataBoundSetter public void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    public boolean isMigrate() {
+        return migrate;
+    }
+
+    /**
+     * @param migrate whether artifacts of builds from before compression was configured get compressed in the background, see {@link ArtifactMigration}
+     */
+    @DataBoundSetter public void setMigrate(boolean migrate) {
+        this.migrate = migrate;
+    }
+
+    private Object readResolve() {
+        if (compression == null) {
+            compression = Compression.DEFAULT;
+        }
+        if (storedExtensions == null) {
+            storedExtensions = ArchiveOptions.DEFAULT_STORED_EXTENSIONS;
+        }
+        return this;
+    }
+
     @Override public ArtifactManager managerFor(Run<?,?> build) {
-        return new CompressingArtifactManager(build);
+        return new CompressingArtifactManager(build, options(), asynchronous);
+    }
+
+    ArchiveOptions options() {
+        return ArchiveOptions.DEFAULT
+                .withCompression(compression)
+                .withStoredExtensions(storedExtensions)
+                .withSampleCompressibility(sampleCompressibility)
+                .withThreads(threads)
+                .withDeduplicate(deduplicate)
+                .withReuseUnchanged(reuseUnchanged)
+                .withDictionary(dictionary)
+                .withSolid(solid)
+                .withShards(shards);
+    }
+
+    /**
+     * Queues again artifacts handed over for archiving in the background but not archived when Jenkins stopped.
+     * Looking at build directories first spares loading builds with nothing staged.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resumeArchiving() throws InterruptedException {
+        for (Job<?,?> job : Jenkins.get().allItems(Job.class)) {
+            File[] dirs = job.getBuildDir().listFiles();
+            if (dirs == null) {
+                continue;
+            }
+            for (File dir : dirs) {
+                if (dir.getName().matches("[0-9]+") && new File(dir, CompressingArtifactManager.STAGING).isDirectory()) {
+                    Run<?,?> build = job.getBuildByNumber(Integer.parseInt(dir.getName()));
+                    if (build != null && build.getArtifactManager() instanceof CompressingArtifactManager) {
+                        ((CompressingArtifactManager) build.getArtifactManager()).resume();
+                    }
+                }
+            }
+        }
     }
 
     @Extension public static final class DescriptorImpl extends ArtifactManagerFactoryDescriptor {
@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Computes SHA-256 hashes of large artifacts next to the workspace,
+ * so that the controller can tell which ones it already has before any content is sent.
+ */
+final class ContentHasher extends MasterToSlaveFileCallable<Map<String,String>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String,String> artifacts;
+    private final long minSize;
+
+    /**
+     * @param artifacts paths in the archive mapped to paths in the workspace
+     * @param minSize size below which files are not hashed
+     */
+    ContentHasher(Map<String,String> artifacts, long minSize) {
+        this.artifacts = artifacts;
+        this.minSize = minSize;
+    }
+
+    /**
+     * @return hexadecimal hashes by path in the archive
+     */
+    @Override public Map<String,String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        Map<String,String> hashes = new HashMap<>();
+        byte[] buffer = new byte[64 * 1024];
+        for (Map.Entry<String,String> artifact : artifacts.entrySet()) {
+            File file = new File(workspace, artifact.getValue());
+            if (!file.isFile() || file.length() < minSize) {
+                continue;
+            }
+            MessageDigest digest = sha256();
+            try (InputStream in = new FileInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            hashes.put(artifact.getKey(), hex(digest.digest()));
+        }
+        return hashes;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x); // required of every platform
+        }
+    }
+
+    static String hex(byte[] hash) {
+        StringBuilder b = new StringBuilder(hash.length * 2);
+        for (byte v : hash) {
+            b.append(Character.forDigit((v >> 4) & 0xF, 16)).append(Character.forDigit(v & 0xF, 16));
+        }
+        return b.toString();
+    }
+
+    static byte[] unhex(String hash) {
+        byte[] b = new byte[hash.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Preset Deflate dictionary of an archive, making small files compress well although each entry is deflated on its own.
+ * Trained from the small files of the previous archive of the job, looking for the segments of content most files have in common,
+ * the way the COVER algorithm of Zstandard does; the best segments go last, where they are the cheapest to refer to.
+ * Kept next to the archive, since its entries cannot be inflated without it.
+ */
+final class DeflateDictionary {
+
+    private static final Logger LOGGER = Logger.getLogger(DeflateDictionary.class.getName());
+
+    /** Largest dictionary Deflate can make use of, the size of its window. */
+    static final int MAX_SIZE = 32 * 1024;
+
+    /** Files from this size get no dictionary, as they have enough content of their own to refer to. */
+    static final long MAX_FILE_SIZE = 64 * 1024;
+
+    /** Amount of content sampled from the previous archive. */
+    private static final int SAMPLE_LIMIT = 4 * 1024 * 1024;
+
+    /** Number of small files below which a dictionary is not worth it. */
+    private static final int MIN_SAMPLES = 8;
+
+    /** Length of the segments of content making up the dictionary. */
+    private static final int SEGMENT_SIZE = 512;
+
+    /** Length of the byte sequences counted, the shortest match worth it. */
+    private static final int GRAM_SIZE = 8;
+
+    private static final int HASH_BITS = 20;
+
+    private DeflateDictionary() {}
+
+    static File file(File archive) {
+        return new File(archive.getPath() + ".dict");
+    }
+
+    /**
+     * Gets the dictionary of an archive, training it from the previous archive if it has none yet.
+     * @return null if there is too little to train it from
+     */
+    static @CheckForNull byte[] of(File archive, @CheckForNull ZipIndex previous) throws IOException {
+        File file = file(archive);
+        if (file.isFile()) {
+            return Files.readAllBytes(file.toPath());
+        }
+        if (previous == null) {
+            return null;
+        }
+        byte[] dictionary;
+        try {
+            dictionary = train(previous);
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Failed to train a dictionary for " + archive, x);
+            return null;
+        }
+        if (dictionary == null) {
+            return null;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), dictionary);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return dictionary;
+    }
+
+    /**
+     * Trains a dictionary from the small files of an archive.
+     * @return null if there are too few of them
+     */
+    static @CheckForNull byte[] train(ZipIndex index) throws IOException {
+        List<byte[]> samples = new ArrayList<>();
+        long total = 0;
+        for (ZipIndex.Entry entry : index.entries()) {
+            if (entry.isDirectory() || entry.blob || entry.block || entry.size < GRAM_SIZE || entry.size >= MAX_FILE_SIZE) {
+                continue;
+            }
+            try (InputStream in = index.open(entry)) {
+                samples.add(IOUtils.toByteArray(in));
+            }
+            total += entry.size;
+            if (total >= SAMPLE_LIMIT) {
+                break;
+            }
+        }
+        if (samples.size() < MIN_SAMPLES) {
+            return null;
+        }
+        long start = System.nanoTime();
+
+        // Number of samples each gram occurs in, or 0 once part of the dictionary; grams sharing a hash are counted together
+        int[] frequencies = new int[1 << HASH_BITS];
+        // Last sample or segment each gram was seen in, to count it once
+        int[] seen = new int[1 << HASH_BITS];
+        for (int s = 0; s < samples.size(); s++) {
+            byte[] sample = samples.get(s);
+            for (int i = 0; i + GRAM_SIZE <= sample.length; i++) {
+                int h = hash(sample, i);
+                if (seen[h] != s + 1) {
+                    seen[h] = s + 1;
+                    frequencies[h]++;
+                }
+            }
+        }
+
+        // Scores only ever decrease as grams get covered, so a segment still scoring best once rescored is the best
+        Stamp stamp = new Stamp(seen);
+        PriorityQueue<Segment> segments = new PriorityQueue<>();
+        for (byte[] sample : samples) {
+            for (int offset = 0; offset + GRAM_SIZE <= sample.length; offset += SEGMENT_SIZE) {
+                Segment segment = new Segment(sample, offset, Math.min(SEGMENT_SIZE, sample.length - offset));
+                segment.score = segment.score(frequencies, stamp);
+                if (segment.score > 0) {
+                    segments.add(segment);
+                }
+            }
+        }
+        List<Segment> selected = new ArrayList<>();
+        int size = 0;
+        while (size < MAX_SIZE && !segments.isEmpty()) {
+            Segment best = segments.poll();
+            long score = best.score(frequencies, stamp);
+            if (score == 0) {
+                continue;
+            }
+            Segment next = segments.peek();
+            if (next != null && score < next.score) {
+                best.score = score;
+                segments.add(best);
+                continue;
+            }
+            for (int i = best.offset; i + GRAM_SIZE <= best.offset + best.length; i++) {
+                frequencies[hash(best.sample, i)] = 0;
+            }
+            selected.add(best);
+            size += best.length;
+        }
+        if (selected.isEmpty()) {
+            return null;
+        }
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(MAX_SIZE);
+        int skip = Math.max(size - MAX_SIZE, 0); // of the least useful segment, going first
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            Segment segment = selected.get(i);
+            int cut = Math.min(skip, segment.length);
+            dictionary.write(segment.sample, segment.offset + cut, segment.length - cut);
+            skip -= cut;
+        }
+        LOGGER.log(Level.FINE, "Trained a dictionary of {0} bytes from {1} files in {2}ms",
+                new Object[] {dictionary.size(), samples.size(), (System.nanoTime() - start) / 1000000});
+        return dictionary.toByteArray();
+    }
+
+    private static int hash(byte[] b, int i) {
+        long gram = 0;
+        for (int j = 0; j < GRAM_SIZE; j++) {
+            gram = gram << 8 | (b[i + j] & 0xFF);
+        }
+        return (int) ((gram * 0x9E3779B97F4A7C15L) >>> (64 - HASH_BITS));
+    }
+
+    /**
+     * Marks grams seen while scoring a segment, reusing the array of {@link #train} with negative values.
+     */
+    private static final class Stamp {
+        final int[] seen;
+        int current;
+
+        Stamp(int[] seen) {
+            this.seen = seen;
+        }
+    }
+
+    private static final class Segment implements Comparable<Segment> {
+        final byte[] sample;
+        final int offset;
+        final int length;
+        long score;
+
+        Segment(byte[] sample, int offset, int length) {
+            this.sample = sample;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Sums how many samples the grams of this segment occur in, counting each gram once.
+         * Grams found in a single sample do not count, no other file being able to refer to them.
+         */
+        long score(int[] frequencies, Stamp stamp) {
+            int mark = --stamp.current;
+            long score = 0;
+            for (int i = offset; i + GRAM_SIZE <= offset + length; i++) {
+                int h = hash(sample, i);
+                if (stamp.seen[h] != mark) {
+                    stamp.seen[h] = mark;
+                    if (frequencies[h] > 1) {
+                        score += frequencies[h];
+                    }
+                }
+            }
+            return score;
+        }
+
+        @Override public int compareTo(Segment o) {
+            return Long.compare(o.score, score);
+        }
+    }
+
+}
@@ -0,0 +1,456 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+
+/**
+ * Index of an archive kept next to it, written once archiving is done so that the central directory need not be parsed again when reading.
+ * Lists entries sorted by name and directories with their children, to be binary searched in place, the file being mapped into memory.
+ * Only used as long as the archive is the one it was written for; any change to the archive makes it be ignored until written again.
+ */
+final class IndexFile {
+
+    private static final Logger LOGGER = Logger.getLogger(IndexFile.class.getName());
+
+    /** Whether index files get written and read. */
+    static boolean ENABLED = !Boolean.getBoolean(IndexFile.class.getName() + ".disabled");
+
+    private static final int MAGIC = 0x5a495832; // ZIX2
+    /** Magic, archive length and time, end of central directory record of the archive, then counts and offsets of the sections. */
+    private static final int HEADER_LENGTH = 4 + 8 + 8 + ZipIndex.EOCD_LENGTH + 4 * 6;
+    private static final int HASH_FLAG = 1;
+    private static final int BLOB_FLAG = 2;
+    private static final int BLOCK_FLAG = 4;
+    /** Unmapping a file is left to the garbage collector, until when Windows does not let it be deleted. */
+    private static final boolean MAP = File.pathSeparatorChar != ';';
+
+    static File file(File archive) {
+        return new File(archive.getPath() + ".idx");
+    }
+
+    /**
+     * Writes the index of an archive, replacing any previous one.
+     * The archive must not be modified meanwhile.
+     * @param list entries of its central directory
+     */
+    static void write(File archive, List<ZipIndex.Entry> list) throws IOException {
+        File file = file(archive);
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            long length = channel.size();
+            long lastModified = Files.getLastModifiedTime(archive.toPath()).toMillis();
+            ByteBuffer eocd = ZipIndex.read(channel, length - ZipIndex.EOCD_LENGTH, ZipIndex.EOCD_LENGTH);
+            Map<String, ZipIndex.Entry> byName = new LinkedHashMap<>();
+            for (ZipIndex.Entry entry : list) {
+                byName.put(entry.name, entry);
+            }
+            List<ZipIndex.Entry> entries = new ArrayList<>(byName.values());
+            Map<String, Integer> indices = new HashMap<>();
+            List<byte[]> names = new ArrayList<>();
+            List<String> visible = new ArrayList<>();
+            for (ZipIndex.Entry entry : entries) {
+                indices.put(entry.name, indices.size());
+                names.add(entry.name.getBytes(StandardCharsets.UTF_8));
+                if (!entry.block) {
+                    visible.add(entry.name);
+                }
+            }
+
+            Integer[] sorted = new Integer[entries.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = i;
+            }
+            Arrays.sort(sorted, Comparator.comparing(names::get, Arrays::compareUnsigned));
+
+            Map<String, List<String>> tree = ZipIndex.tree(visible);
+            String[] dirs = tree.keySet().toArray(new String[0]);
+            byte[][] dirNames = new byte[dirs.length][];
+            for (int i = 0; i < dirs.length; i++) {
+                dirNames[i] = dirs[i].getBytes(StandardCharsets.UTF_8);
+            }
+            Integer[] dirOrder = new Integer[dirs.length];
+            for (int i = 0; i < dirOrder.length; i++) {
+                dirOrder[i] = i;
+            }
+            Arrays.sort(dirOrder, Comparator.comparing(i -> dirNames[i], Arrays::compareUnsigned));
+            Map<String, Integer> dirIndices = new HashMap<>();
+            for (int i = 0; i < dirOrder.length; i++) {
+                dirIndices.put(dirs[dirOrder[i]], i);
+            }
+
+            List<ZipIndex.Entry> blocks = new ArrayList<>();
+            for (ZipIndex.Entry entry : entries) {
+                if (entry.block) {
+                    blocks.add(entry);
+                }
+            }
+            blocks.sort(Comparator.comparingLong(e -> e.localHeaderOffset));
+
+            // Variable length records go after the fixed size tables pointing to them
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream r = new DataOutputStream(records);
+            int recordsOffset = HEADER_LENGTH + 4 * entries.size() + 4 * entries.size() + 4 * dirs.length + 12 * blocks.size();
+            int[] entryRecords = new int[entries.size()];
+            Map<Long, Long> dataOffsets = new HashMap<>();
+            for (int i = 0; i < entries.size(); i++) {
+                entryRecords[i] = recordsOffset + r.size();
+                writeEntry(r, names.get(i), entries.get(i), dataOffset(channel, entries.get(i), dataOffsets));
+            }
+            int[] dirRecords = new int[dirs.length];
+            for (int i = 0; i < dirOrder.length; i++) {
+                String dir = dirs[dirOrder[i]];
+                List<String> children = tree.get(dir);
+                dirRecords[i] = recordsOffset + r.size();
+                r.writeInt(dirNames[dirOrder[i]].length);
+                r.write(dirNames[dirOrder[i]]);
+                r.writeInt(children.size());
+                for (String child : children) {
+                    Integer entry = indices.get(child);
+                    r.writeInt(entry != null ? entry : -1 - dirIndices.get(child));
+                }
+            }
+            if (recordsOffset + (long) r.size() > Integer.MAX_VALUE) {
+                throw new IOException("Too many entries in " + archive + " to index them");
+            }
+
+            out.writeInt(MAGIC);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.write(eocd.array(), 0, ZipIndex.EOCD_LENGTH);
+            out.writeInt(entries.size());
+            out.writeInt(dirs.length);
+            out.writeInt(blocks.size());
+            int sortedOffset = HEADER_LENGTH + 4 * entries.size();
+            int dirsOffset = sortedOffset + 4 * entries.size();
+            int blocksOffset = dirsOffset + 4 * dirs.length;
+            out.writeInt(sortedOffset);
+            out.writeInt(dirsOffset);
+            out.writeInt(blocksOffset);
+            for (int record : entryRecords) {
+                out.writeInt(record);
+            }
+            for (int i : sorted) {
+                out.writeInt(i);
+            }
+            for (int record : dirRecords) {
+                out.writeInt(record);
+            }
+            for (ZipIndex.Entry block : blocks) {
+                out.writeLong(block.localHeaderOffset);
+                out.writeInt(indices.get(block.name));
+            }
+            records.writeTo(out);
+        } catch (IOException | RuntimeException x) {
+            Files.deleteIfExists(temp.toPath());
+            throw x;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Offset of the data following the local header of an entry, read once per header so that readers need not.
+     * @param known offsets already read by local header offset, solid members sharing that of their block
+     */
+    private static long dataOffset(FileChannel channel, ZipIndex.Entry entry, Map<Long, Long> known) throws IOException {
+        if (entry.dataOffset != -1) {
+            return entry.dataOffset;
+        }
+        Long offset = known.get(entry.localHeaderOffset);
+        if (offset == null) {
+            offset = ZipIndex.dataOffset(channel, entry);
+            known.put(entry.localHeaderOffset, offset);
+        }
+        return offset;
+    }
+
+    private static void writeEntry(DataOutputStream r, byte[] name, ZipIndex.Entry entry, long dataOffset) throws IOException {
+        r.writeInt(name.length);
+        r.write(name);
+        r.writeShort(entry.versionMadeBy);
+        r.writeShort(entry.flags);
+        r.writeShort(entry.method);
+        r.writeInt((int) entry.dosTime);
+        r.writeInt((int) entry.crc);
+        r.writeLong(entry.compressedSize);
+        r.writeLong(entry.size);
+        r.writeInt(entry.externalAttributes);
+        r.writeLong(entry.time);
+        r.writeLong(entry.localHeaderOffset);
+        r.writeLong(dataOffset);
+        r.writeLong(entry.blockPosition);
+        r.writeInt(entry.seekInterval);
+        r.writeInt(entry.seekPoints != null ? entry.seekPoints.length : 0);
+        if (entry.seekPoints != null) {
+            for (long point : entry.seekPoints) {
+                r.writeLong(point);
+            }
+        }
+        r.write((entry.hash != null ? HASH_FLAG : 0) | (entry.blob ? BLOB_FLAG : 0) | (entry.block ? BLOCK_FLAG : 0));
+        if (entry.hash != null) {
+            r.write(entry.hash);
+        }
+    }
+
+    /**
+     * Opens the index of an archive.
+     * @param attributes those of the archive
+     * @return null if there is none, or not for the archive as it is now
+     */
+    static @CheckForNull IndexFile open(File archive, BasicFileAttributes attributes) {
+        if (!ENABLED) {
+            return null;
+        }
+        File file = file(archive);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                FileChannel archiveChannel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH || channel.size() > Integer.MAX_VALUE || attributes.size() < ZipIndex.EOCD_LENGTH) {
+                return null;
+            }
+            ByteBuffer buffer = MAP ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) : ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            byte[] eocd = new byte[ZipIndex.EOCD_LENGTH];
+            buffer.position(20);
+            buffer.get(eocd);
+            // The end of central directory record tells apart archives of the same length written within the same second
+            if (buffer.getInt(0) != MAGIC || buffer.getLong(4) != attributes.size() || buffer.getLong(12) != attributes.lastModifiedTime().toMillis()
+                    || !Arrays.equals(eocd, ZipIndex.read(archiveChannel, attributes.size() - ZipIndex.EOCD_LENGTH, ZipIndex.EOCD_LENGTH).array())) {
+                return null;
+            }
+            return new IndexFile(buffer);
+        } catch (NoSuchFileException x) {
+            return null;
+        } catch (IOException | RuntimeException x) {
+            LOGGER.log(Level.FINE, "Failed to read the index of " + archive, x);
+            return null;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int dirCount;
+    private final int blockCount;
+    private final int sortedOffset;
+    private final int dirsOffset;
+    private final int blocksOffset;
+
+    private IndexFile(ByteBuffer buffer) {
+        this.buffer = buffer;
+        int header = 20 + ZipIndex.EOCD_LENGTH;
+        count = buffer.getInt(header);
+        dirCount = buffer.getInt(header + 4);
+        blockCount = buffer.getInt(header + 8);
+        sortedOffset = buffer.getInt(header + 12);
+        dirsOffset = buffer.getInt(header + 16);
+        blocksOffset = buffer.getInt(header + 20);
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean hasBlocks() {
+        return blockCount > 0;
+    }
+
+    /**
+     * Entries in the order of the central directory, read as iterated.
+     */
+    List<ZipIndex.Entry> entries() {
+        return new AbstractList<ZipIndex.Entry>() {
+            @Override public ZipIndex.Entry get(int index) {
+                return entry(index);
+            }
+
+            @Override public int size() {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Looks up an entry, solid blocks included.
+     */
+    @CheckForNull ZipIndex.Entry entry(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int index = buffer.getInt(sortedOffset + 4 * middle);
+            int c = compare(buffer.getInt(HEADER_LENGTH + 4 * index), key);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return entry(index);
+            }
+        }
+        return null;
+    }
+
+    boolean isDirectory(String dir) {
+        return directory(dir) != -1;
+    }
+
+    /**
+     * Lists sorted paths of immediate children of a directory, or null if not a directory.
+     */
+    @CheckForNull List<String> list(String dir) {
+        int record = directory(dir);
+        if (record == -1) {
+            return null;
+        }
+        int children = record + 4 + buffer.getInt(record);
+        String[] list = new String[buffer.getInt(children)];
+        for (int i = 0; i < list.length; i++) {
+            int child = buffer.getInt(children + 4 + 4 * i);
+            list[i] = name(child >= 0 ? buffer.getInt(HEADER_LENGTH + 4 * child) : buffer.getInt(dirsOffset + 4 * (-1 - child)));
+        }
+        return Collections.unmodifiableList(Arrays.asList(list));
+    }
+
+    /**
+     * Looks up the solid block at the given offset.
+     */
+    @CheckForNull ZipIndex.Entry block(long offset) {
+        int low = 0;
+        int high = blockCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long o = buffer.getLong(blocksOffset + 12 * middle);
+            if (o < offset) {
+                low = middle + 1;
+            } else if (o > offset) {
+                high = middle - 1;
+            } else {
+                return entry(buffer.getInt(blocksOffset + 12 * middle + 8));
+            }
+        }
+        return null;
+    }
+
+    /** Record of a directory, or -1. */
+    private int directory(String dir) {
+        byte[] key = dir.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = dirCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int record = buffer.getInt(dirsOffset + 4 * middle);
+            int c = compare(record, key);
+            if (c < 0) {
+                low = middle + 1;
+            } else if (c > 0) {
+                high = middle - 1;
+            } else {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    private ZipIndex.Entry entry(int index) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(buffer.getInt(HEADER_LENGTH + 4 * index));
+        byte[] name = new byte[b.getInt()];
+        b.get(name);
+        int versionMadeBy = b.getShort() & ZipIndex.MAGIC16;
+        int flags = b.getShort() & ZipIndex.MAGIC16;
+        int method = b.getShort() & ZipIndex.MAGIC16;
+        long dosTime = b.getInt() & ZipIndex.MAGIC32;
+        long crc = b.getInt() & ZipIndex.MAGIC32;
+        long compressedSize = b.getLong();
+        long size = b.getLong();
+        int externalAttributes = b.getInt();
+        long time = b.getLong();
+        long localHeaderOffset = b.getLong();
+        long dataOffset = b.getLong();
+        long blockPosition = b.getLong();
+        int seekInterval = b.getInt();
+        long[] seekPoints = new long[b.getInt()];
+        for (int i = 0; i < seekPoints.length; i++) {
+            seekPoints[i] = b.getLong();
+        }
+        int bits = b.get();
+        byte[] hash = null;
+        if ((bits & HASH_FLAG) != 0) {
+            hash = new byte[32];
+            b.get(hash);
+        }
+        return new ZipIndex.Entry(new String(name, StandardCharsets.UTF_8), versionMadeBy, flags, method, dosTime, crc, compressedSize, size, externalAttributes, time, localHeaderOffset,
+                seekInterval, seekPoints.length > 0 ? seekPoints : null, hash, (bits & BLOB_FLAG) != 0, (bits & BLOCK_FLAG) != 0, blockPosition, dataOffset);
+    }
+
+    /** Name of the entry or directory whose record starts at the given offset. */
+    private String name(int record) {
+        byte[] name = new byte[buffer.getInt(record)];
+        ByteBuffer b = buffer.duplicate();
+        b.position(record + 4);
+        b.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /** Compares the name of the record starting at the given offset with a key, the way names are sorted. */
+    private int compare(int record, byte[] key) {
+        int length = buffer.getInt(record);
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int c = (buffer.get(record + 4 + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+}
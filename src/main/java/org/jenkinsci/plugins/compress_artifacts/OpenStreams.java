@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+
+/**
+ * Keeps track of the streams returned by {@code ZipStorage.open()} until they are closed,
+ * and closes those dropped without being closed once they are garbage collected.
+ */
+final class OpenStreams {
+
+    private static final Logger LOGGER = Logger.getLogger(OpenStreams.class.getName());
+
+    /**
+     * Capture where one stream in this many was opened, to be logged if it leaks.
+     * 0 never does, 1 always does.
+     */
+    static int SAMPLING = Integer.getInteger(OpenStreams.class.getName() + ".sampling", 100);
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    /** Streams open by archive. */
+    private static final Map<File, Set<Handle>> registry = new ConcurrentHashMap<>();
+
+    private OpenStreams() {}
+
+    /**
+     * What is needed to close a stream, which must not refer back to the stream itself.
+     */
+    static final class Handle implements Runnable {
+        private final File archive;
+        private final String path;
+        private final InputStream in;
+        private final String thread = Thread.currentThread().getName();
+        private final Instant opened = Instant.now();
+        private final @CheckForNull Exception acquired;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private Cleaner.Cleanable cleanable;
+
+        private Handle(File archive, String path, InputStream in) {
+            this.archive = archive;
+            this.path = path;
+            this.in = in;
+            int sampling = SAMPLING;
+            acquired = sampling > 0 && ThreadLocalRandom.current().nextInt(sampling) == 0 ? new Exception("Opened by:") : null;
+        }
+
+        /**
+         * Unregisters the stream once it is closed.
+         */
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                unregister(this);
+                cleanable.clean();
+            }
+        }
+
+        /**
+         * Closes the stream after it was garbage collected without having been closed.
+         */
+        @Override public void run() {
+            if (closed.compareAndSet(false, true)) {
+                unregister(this);
+                ArtifactMetrics.leakedStreams.increment();
+                if (acquired != null) {
+                    LOGGER.log(Level.WARNING, "InputStream created by ZipStorage#open() not closed properly: " + this, acquired);
+                } else {
+                    LOGGER.log(Level.WARNING, "InputStream created by ZipStorage#open() not closed properly: {0}; set {1}.sampling=1 to see where it was opened",
+                            new Object[] {this, OpenStreams.class.getName()});
+                }
+                try {
+                    in.close();
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "Failed to close " + this, x);
+                }
+            }
+        }
+
+        @Override public String toString() {
+            return path + " in " + archive + " opened at " + opened + " by " + thread;
+        }
+    }
+
+    /**
+     * Registers a stream being opened.
+     * @param stream what is returned to the caller
+     * @param in what it reads from, to be closed if the stream is dropped
+     */
+    static Handle register(InputStream stream, File archive, String path, InputStream in) {
+        Handle handle = new Handle(archive, path, in);
+        registry.compute(archive, (k, handles) -> {
+            if (handles == null) {
+                handles = ConcurrentHashMap.newKeySet();
+            }
+            handles.add(handle);
+            return handles;
+        });
+        handle.cleanable = cleaner.register(stream, handle);
+        return handle;
+    }
+
+    private static void unregister(Handle handle) {
+        registry.computeIfPresent(handle.archive, (k, handles) -> {
+            handles.remove(handle);
+            return handles.isEmpty() ? null : handles;
+        });
+    }
+
+    static int count() {
+        int count = 0;
+        for (Set<Handle> handles : registry.values()) {
+            count += handles.size();
+        }
+        return count;
+    }
+
+    /**
+     * Counts the streams open by archive.
+     */
+    static Map<String, Integer> byArchive() {
+        Map<String, Integer> result = new TreeMap<>();
+        registry.forEach((archive, handles) -> result.put(archive.getPath(), handles.size()));
+        return result;
+    }
+
+    /**
+     * Describes the streams open on an archive.
+     */
+    static List<String> list(File archive) {
+        List<String> result = new ArrayList<>();
+        Set<Handle> handles = registry.get(archive);
+        if (handles != null) {
+            for (Handle handle : handles) {
+                result.add(handle.toString());
+            }
+        }
+        return result;
+    }
+}
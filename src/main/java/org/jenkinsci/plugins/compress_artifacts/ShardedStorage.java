@@ -0,0 +1,531 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.BuildListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
+import jenkins.util.VirtualFile;
+
+/**
+ * Artifacts of a build spread over several archives by a hash of their path, written side by side and read as one tree.
+ * A manifest next to where the single archive would be records how many there are and the directory tree of all of them,
+ * so reading a file only opens the archive it hashes to and listing a directory opens none.
+ */
+final class ShardedStorage extends VirtualFile {
+
+    /** Maximum number of archives of a build written at once. */
+    static int THREADS = Integer.getInteger(ShardedStorage.class.getName() + ".threads", 4);
+
+    private static final int MAGIC = 0x5a534831; // ZSH1
+
+    /**
+     * Lists the archives the artifacts are spread over.
+     */
+    static File manifest(File archive) {
+        return new File(archive.getPath() + ".shards");
+    }
+
+    static File shard(File archive, int shard) {
+        return new File(archive.getPath() + "." + shard);
+    }
+
+    /**
+     * Number of archives and directory tree of a build, as read from its manifest.
+     */
+    private static final class Manifest {
+        final int shards;
+        final Map<String, List<String>> directories;
+        final long lastModified;
+        final long length;
+
+        Manifest(int shards, Map<String, List<String>> directories, long lastModified, long length) {
+            this.shards = shards;
+            this.directories = directories;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private static final Map<File, Manifest> manifests = new LinkedHashMap<File, Manifest>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<File, Manifest> eldest) {
+            return size() > ZipIndex.CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Reads the manifest of a build, unless it was already read and has not changed since.
+     * Names are only ever added to a manifest, so any change makes it longer.
+     * @return null if artifacts are not sharded
+     */
+    private static @CheckForNull Manifest read(File archive) throws IOException {
+        File file = manifest(archive);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException x) {
+            synchronized (manifests) {
+                manifests.remove(archive);
+            }
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        synchronized (manifests) {
+            Manifest manifest = manifests.get(archive);
+            if (manifest != null && manifest.lastModified == lastModified && manifest.length == attributes.size()) {
+                return manifest;
+            }
+        }
+        Manifest manifest;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a manifest: " + file);
+            }
+            int shards = in.readInt();
+            int count = in.readInt();
+            if (shards < 1 || count < 0) {
+                throw new IOException("Corrupt manifest " + file);
+            }
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                names.add(new String(name, StandardCharsets.UTF_8));
+            }
+            manifest = new Manifest(shards, ZipIndex.tree(names), lastModified, attributes.size());
+        } catch (EOFException x) {
+            throw new IOException("Truncated manifest " + file, x);
+        }
+        synchronized (manifests) {
+            manifests.put(archive, manifest);
+        }
+        return manifest;
+    }
+
+    /**
+     * @return number of archives artifacts are spread over, or 0 if they are not
+     */
+    static int shards(File archive) throws IOException {
+        Manifest manifest = read(archive);
+        return manifest != null ? manifest.shards : 0;
+    }
+
+    /**
+     * Lists the names in every archive into the manifest, replacing any previous one at once.
+     */
+    private static void writeManifest(File archive, int shards) throws IOException {
+        File manifest = manifest(archive);
+        File temp = new File(manifest.getPath() + ".tmp");
+        List<byte[]> names = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            ZipIndex index = ZipIndex.of(shard(archive, i));
+            if (index != null) {
+                for (ZipIndex.Entry entry : index.entries()) {
+                    if (!entry.block) {
+                        names.add(entry.name.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(shards);
+            out.writeInt(names.size());
+            for (byte[] name : names) {
+                out.writeShort(name.length); // as in the central directory
+                out.write(name);
+            }
+        }
+        Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Archives present for a build whether or not they are listed in a manifest,
+     * as there are none when writing them was interrupted before it could be written.
+     */
+    static List<File> shardFiles(File archive) {
+        List<File> files = new ArrayList<>();
+        File[] siblings = archive.getParentFile().listFiles();
+        if (siblings != null) {
+            String prefix = archive.getName() + ".";
+            for (File sibling : siblings) {
+                String name = sibling.getName();
+                if (name.startsWith(prefix) && name.length() > prefix.length() && name.substring(prefix.length()).chars().allMatch(c -> c >= '0' && c <= '9')) {
+                    files.add(sibling);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static int shardOf(String path, int shards) {
+        return Math.floorMod(path.hashCode(), shards);
+    }
+
+    static VirtualFile root(File archive, int shards) {
+        return new ShardedStorage(archive, shards, "");
+    }
+
+    /**
+     * Adds artifacts to the archives of a build, each archive being written as by {@link ZipStorage#archive}, several at once.
+     * The number of archives is that of the manifest if there already is one, so that artifacts keep hashing to the same archive.
+     * The manifest is only written once every archive was, so until then readers see the artifacts as they were before.
+     * Should one archive fail, others may still have been written; without a manifest they are deleted by the next attempt.
+     * @param previous where the archive of the previous build would be, sharded or not, to copy unchanged files from if so configured
+     */
+    static void archive(File archive, @CheckForNull File previous, FilePath workspace, Launcher launcher, BuildListener listener, Map<String,String> artifacts, ArchiveOptions options) throws IOException, InterruptedException {
+        int shards = prepare(archive, options);
+        forEachShard(artifacts, shards, (shard, part) ->
+                ZipStorage.archive(shard(archive, shard), previousShard(previous, shards, shard), workspace, launcher, listener, part, options));
+        writeManifest(archive, shards);
+    }
+
+    /**
+     * Has the agent compress artifacts for each archive of a build, as by {@link ZipStorage#stage}, into a directory of their own,
+     * to be added by {@link #archiveStaged} later on.
+     * @param staged directory to write them to, under the names of the archives they are for
+     */
+    static void stage(File staged, File archive, @CheckForNull File previous, FilePath workspace, BuildListener listener, Map<String,String> artifacts, ArchiveOptions options) throws IOException, InterruptedException {
+        // Orphans are left for archiveStaged to delete, earlier artifacts being possibly added meanwhile
+        int shards = shards(archive);
+        int count = shards > 0 ? shards : Math.max(options.shards, 1);
+        forEachShard(artifacts, count, (shard, part) ->
+                ZipStorage.stage(new File(staged, shard(archive, shard).getName()), shard(archive, shard), previousShard(previous, count, shard), workspace, listener, part, options));
+    }
+
+    /**
+     * Adds what {@link #stage} wrote to the archives of a build, one archive after another, then writes the manifest.
+     * Each staged archive is deleted once added, so that a later attempt after a failure only adds those left.
+     */
+    static void archiveStaged(File archive, @CheckForNull File previous, File staged, ArchiveOptions options, BuildListener listener) throws IOException, InterruptedException {
+        int shards = prepare(archive, options);
+        for (int i = 0; i < shards; i++) {
+            File part = new File(staged, shard(archive, i).getName());
+            if (part.isFile()) {
+                ZipStorage.archiveStaged(shard(archive, i), previousShard(previous, shards, i), part, options, listener);
+            }
+        }
+        writeManifest(archive, shards);
+    }
+
+    /**
+     * Number of archives to add artifacts to, deleting any left by a failed first attempt, which no manifest lists yet.
+     */
+    private static int prepare(File archive, ArchiveOptions options) throws IOException, InterruptedException {
+        int shards = shards(archive);
+        if (shards == 0) {
+            for (File orphan : shardFiles(archive)) {
+                ZipStorage.delete(orphan);
+            }
+            shards = Math.max(options.shards, 1);
+        }
+        return shards;
+    }
+
+    /**
+     * Work on the artifacts of one archive.
+     */
+    private interface ShardWork {
+        void run(int shard, Map<String,String> artifacts) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Splits artifacts by the archive they hash to, and works on those of each archive, several at once.
+     */
+    private static void forEachShard(Map<String,String> artifacts, int shards, ShardWork work) throws IOException, InterruptedException {
+        List<Map<String,String>> split = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            split.add(new LinkedHashMap<>());
+        }
+        for (Map.Entry<String,String> artifact : artifacts.entrySet()) {
+            split.get(shardOf(artifact.getKey(), shards)).put(artifact.getKey(), artifact.getValue());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, shards)), new ShardThreadFactory());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < shards; i++) {
+                Map<String,String> part = split.get(i);
+                if (part.isEmpty()) {
+                    continue;
+                }
+                int shard = i;
+                futures.add(pool.submit(() -> {
+                    work.run(shard, part);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException x) {
+                    Throwable cause = x.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Archive of the previous build to copy unchanged files of an archive from.
+     * Files hash to the same archive from one build to the next, unless their number changed.
+     */
+    private static @CheckForNull File previousShard(@CheckForNull File previous, int shards, int shard) throws IOException {
+        int previousShards = previous != null ? shards(previous) : 0;
+        return previousShards == shards ? shard(previous, shard) : previousShards == 0 ? previous : null;
+    }
+
+    /**
+     * Deletes every archive whether listed in the manifest or not, then the manifest once none is left,
+     * so that archives which could not be deleted can still be read, and deleted by a later attempt.
+     * @return false if there was nothing to delete, or some archive could not be deleted
+     */
+    static boolean delete(File archive) throws IOException, InterruptedException {
+        boolean deleted = false;
+        boolean failed = false;
+        IOException error = null;
+        for (File shard : shardFiles(archive)) {
+            try {
+                if (ZipStorage.delete(shard)) {
+                    deleted = true;
+                } else {
+                    failed = true;
+                }
+            } catch (IOException x) {
+                if (error == null) {
+                    error = x;
+                } else {
+                    error.addSuppressed(x);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (failed) {
+            return false;
+        }
+        if (manifest(archive).delete()) {
+            deleted = true;
+        }
+        synchronized (manifests) {
+            manifests.remove(archive);
+        }
+        return deleted;
+    }
+
+    private final File archive;
+    private final int shards;
+    private final String path;
+
+    private ShardedStorage(File archive, int shards, String path) {
+        this.archive = archive;
+        this.shards = shards;
+        this.path = path;
+    }
+
+    @Override public String getName() {
+        return path.replaceFirst("^(.+/)?([^/]+)/?$", "$2");
+    }
+
+    @Override public URI toURI() {
+        return ZipStorage.toURI(path);
+    }
+
+    @Override public VirtualFile getParent() {
+        String parent = ZipStorage.parent(path);
+        return parent != null ? new ShardedStorage(archive, shards, parent) : null;
+    }
+
+    private boolean looksLikeDir() {
+        return path.length() == 0 || path.endsWith("/");
+    }
+
+    /**
+     * Index of the archive a file hashes to.
+     */
+    private @CheckForNull ZipIndex index(String file) throws IOException {
+        return ZipIndex.of(shard(archive, shardOf(file, shards)));
+    }
+
+    /**
+     * The same file in the archive it hashes to.
+     */
+    private VirtualFile file() {
+        return ZipStorage.file(shard(archive, shardOf(path, shards)), path);
+    }
+
+    /**
+     * Checks whether the manifest lists a file, or a directory if ending with {@code /}, without opening any archive.
+     */
+    private boolean listed(String name) throws IOException {
+        String parent = ZipStorage.parent(name);
+        List<String> siblings = parent != null ? children(parent) : null;
+        return siblings != null && Collections.binarySearch(siblings, name) >= 0;
+    }
+
+    /**
+     * Children of a directory according to the manifest.
+     * @return null if it is not a directory
+     */
+    private @CheckForNull List<String> children(String dir) throws IOException {
+        Manifest manifest = read(archive);
+        return manifest != null ? manifest.directories.get(dir) : null;
+    }
+
+    @Override public boolean isDirectory() throws IOException {
+        return looksLikeDir() && children(path) != null;
+    }
+
+    @Override public boolean isFile() throws IOException {
+        return !looksLikeDir() && listed(path);
+    }
+
+    @Override public boolean exists() throws IOException {
+        return looksLikeDir() ? isDirectory() : isFile();
+    }
+
+    @Override public VirtualFile[] list() throws IOException {
+        if (!looksLikeDir()) {
+            return new VirtualFile[0];
+        }
+        List<String> children = children(path);
+        if (children == null) {
+            return new VirtualFile[0];
+        }
+        List<VirtualFile> files = new ArrayList<>();
+        for (String child : children) {
+            files.add(new ShardedStorage(archive, shards, child));
+        }
+        return files.toArray(new VirtualFile[0]);
+    }
+
+    @Override public VirtualFile child(String name) {
+        String file = path + name;
+        try {
+            if (!listed(file) && listed(file + '/')) {
+                return new ShardedStorage(archive, shards, file + '/');
+            }
+        } catch (IOException x) {
+            // treat as missing
+        }
+        return new ShardedStorage(archive, shards, file);
+    }
+
+    @Override public long length() throws IOException {
+        return looksLikeDir() ? 0 : file().length();
+    }
+
+    @Override public long lastModified() throws IOException {
+        return looksLikeDir() ? 0 : file().lastModified();
+    }
+
+    @Override public boolean canRead() throws IOException {
+        return true;
+    }
+
+    @Override public InputStream open() throws IOException {
+        if (looksLikeDir()) {
+            throw new FileNotFoundException(this + " (Is a directory)");
+        }
+        return file().open();
+    }
+
+    @Override public int zip(OutputStream outputStream, String includes, String excludes, boolean useDefaultExcludes, String prefix, OpenOption... openOptions) throws IOException {
+        String correctPrefix = prefix == null || prefix.trim().isEmpty() ? "" : prefix.endsWith("/") ? prefix : prefix + "/";
+        Collection<String> files = new TreeSet<>(list(includes, excludes, useDefaultExcludes, openOptions));
+        int count = 0;
+        try (ZipWriter writer = ZipWriter.download(new BufferedOutputStream(outputStream))) {
+            for (String relativePath : files) {
+                ZipIndex index = index(path + relativePath);
+                ZipIndex.Entry entry = index != null ? index.entry(path + relativePath) : null;
+                if (entry == null || entry.isDirectory()) {
+                    continue;
+                }
+                ZipStorage.copy(writer, index, entry, correctPrefix + relativePath);
+                count++;
+            }
+            writer.finish();
+        }
+        return count;
+    }
+
+    private static final class ShardThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Archiving shard #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Least recently used cache of byte arrays, bounded by their total length rather than their number.
+ */
+final class WeightedCache<K> {
+
+    interface Loader {
+        byte[] load() throws IOException;
+    }
+
+    private final long capacity;
+    private final LinkedHashMap<K, byte[]> values = new LinkedHashMap<>(16, 0.75f, true); // guarded by this
+    private long weight; // guarded by this
+    /** Incremented by each invalidation, so that values loaded meanwhile are not cached. */
+    private long generation; // guarded by this
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity maximum total length of cached values in bytes, values longer than that are never cached
+     */
+    WeightedCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets a cached value, loading it if absent.
+     * Loading happens outside of any lock, so concurrent misses of the same key may each load it.
+     * A value loaded while some values were invalidated is returned but not cached, as it may be stale.
+     */
+    byte[] get(K key, Loader loader) throws IOException {
+        long loading;
+        synchronized (this) {
+            byte[] value = values.get(key);
+            if (value != null) {
+                hits.incrementAndGet();
+                return value;
+            }
+            loading = generation;
+        }
+        misses.incrementAndGet();
+        byte[] value = loader.load();
+        if (value.length <= capacity) {
+            synchronized (this) {
+                if (generation != loading) {
+                    return value;
+                }
+                byte[] previous = values.put(key, value);
+                if (previous != null) {
+                    weight -= previous.length;
+                }
+                weight += value.length;
+                // Access order puts the least recently used values first
+                Iterator<byte[]> it = values.values().iterator();
+                while (weight > capacity) {
+                    weight -= it.next().length;
+                    it.remove();
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Drops values whose key matches, for instance because what they were loaded from changed.
+     */
+    synchronized void invalidate(Predicate<? super K> filter) {
+        generation++;
+        Iterator<Map.Entry<K, byte[]>> it = values.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, byte[]> e = it.next();
+            if (filter.test(e.getKey())) {
+                weight -= e.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    /** Total length of cached values. */
+    synchronized long weight() {
+        return weight;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+}
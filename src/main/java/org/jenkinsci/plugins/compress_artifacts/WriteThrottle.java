@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many archives are written at once on the controller, and how fast, so that a burst of builds archiving together does not starve other disk I/O.
+ * Limits are read whenever used, so they can be changed at runtime.
+ */
+final class WriteThrottle {
+
+    /** Maximum number of archives written at once, or 0 for no limit. */
+    static int MAX_WRITERS = Integer.getInteger(WriteThrottle.class.getName() + ".maxWriters", 0);
+
+    /** Maximum number of bytes written per second across all archives, or 0 for no limit. */
+    static long BYTES_PER_SECOND = Long.getLong(WriteThrottle.class.getName() + ".bytesPerSecond", 0);
+
+    /**
+     * Time as seen by the rate limit.
+     */
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override public void sleep(long nanos) throws InterruptedException {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+        };
+
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    /** Replaced by tests, followed by {@link #reset}. */
+    static Clock clock = Clock.SYSTEM;
+
+    private static final Object LOCK = new Object();
+    private static int writers; // guarded by LOCK
+    private static int waiting; // guarded by LOCK
+    /** Bytes that may be written right away, negative when writers are ahead of the rate. */
+    private static double tokens; // guarded by LOCK
+    private static long refilled = clock.nanoTime(); // guarded by LOCK
+    private static final AtomicLong waitedNanos = new AtomicLong();
+
+    private WriteThrottle() {}
+
+    /**
+     * Waits for a turn to write an archive, to be followed by {@link #release}.
+     * @return milliseconds waited
+     */
+    static long acquire() throws InterruptedException {
+        long start = System.nanoTime();
+        synchronized (LOCK) {
+            waiting++;
+            try {
+                while (MAX_WRITERS > 0 && writers >= MAX_WRITERS) {
+                    LOCK.wait();
+                }
+            } finally {
+                waiting--;
+            }
+            writers++;
+        }
+        long waited = System.nanoTime() - start;
+        waitedNanos.addAndGet(waited);
+        return TimeUnit.NANOSECONDS.toMillis(waited);
+    }
+
+    static void release() {
+        synchronized (LOCK) {
+            writers--;
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Accounts for data about to be written, waiting as long as needed to keep to {@link #BYTES_PER_SECOND}.
+     */
+    static void consume(long bytes) throws InterruptedIOException {
+        long rate = BYTES_PER_SECOND;
+        if (rate <= 0) {
+            return;
+        }
+        long delay;
+        synchronized (LOCK) {
+            long now = clock.nanoTime();
+            // No more than a second worth of bytes saved up for bursts
+            tokens = Math.min(rate, tokens + (double) (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+            refilled = now;
+            tokens -= bytes;
+            delay = tokens < 0 ? (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        }
+        if (delay > 0) {
+            waitedNanos.addAndGet(delay);
+            try {
+                clock.sleep(delay);
+            } catch (InterruptedException x) {
+                throw (InterruptedIOException) new InterruptedIOException().initCause(x);
+            }
+        }
+    }
+
+    /**
+     * Starts the rate limit afresh, with no bytes saved up.
+     */
+    static void reset() {
+        synchronized (LOCK) {
+            tokens = 0;
+            refilled = clock.nanoTime();
+        }
+    }
+
+    /**
+     * Number of archives being written.
+     */
+    static int writers() {
+        synchronized (LOCK) {
+            return writers;
+        }
+    }
+
+    /**
+     * Number of archives waiting for their turn to be written.
+     */
+    static int queueLength() {
+        synchronized (LOCK) {
+            return waiting;
+        }
+    }
+
+    /**
+     * Total time spent waiting for a turn or for the rate limit, in milliseconds.
+     */
+    static long waitedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitedNanos.get());
+    }
+
+}
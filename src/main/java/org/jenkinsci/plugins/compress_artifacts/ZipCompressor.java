@@ -0,0 +1,369 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import hudson.remoting.VirtualChannel;
+import hudson.util.IOUtils;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.annotation.CheckForNull;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Compresses artifacts into a ZIP stream, running next to the workspace.
+ * With several threads, files are cut into chunks deflated concurrently, the way pigz does:
+ * each chunk is primed with the end of the previous one as dictionary and ends on a byte boundary,
+ * so that their output is concatenated into a single Deflate stream as good as a sequential one.
+ * Chunks starting a {@link ZipWriter#SEEK_INTERVAL} are not primed, to serve as seek points.
+ * Small files may instead be gathered into {@link ZipWriter.SolidBlock}s, each deflated as a whole.
+ * Files are read and the resulting archive written in order on the calling thread.
+ * Returns the number of artifacts written, which may be less than requested once enough data was, leaving the rest to another call.
+ */
+final class ZipCompressor extends MasterToSlaveFileCallable<Integer> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    /** Final empty block ending a Deflate stream made of flushed chunks. */
+    private static final byte[] END_OF_STREAM = {3, 0};
+    /** Files smaller than this go to solid blocks, when enabled. */
+    static final long SOLID_FILE_SIZE = 64 * 1024;
+    /** Uncompressed length from which a solid block is written, bounding how much reading one of its files has to inflate. */
+    static final int SOLID_BLOCK_SIZE = 1024 * 1024;
+
+    private final Map<String,String> artifacts;
+    private final ArchiveOptions options;
+    private final Map<String,String> references;
+    private final long hashSize;
+    private final @CheckForNull byte[] dictionary;
+    private final long offset;
+    private final long limit;
+    private final OutputStream out;
+
+    /**
+     * @param artifacts paths in the archive mapped to paths in the workspace
+     * @param references hashes of the artifacts the controller already has, by path in the archive, to be sent as references only
+     * @param hashSize size from which the hash of artifacts gets recorded, or -1 for none
+     * @param dictionary preset dictionary to deflate small files with, if any
+     * @param offset position in the archive at which the stream is to be written
+     * @param limit amount of data after which no further artifact is started
+     */
+    ZipCompressor(Map<String,String> artifacts, ArchiveOptions options, Map<String,String> references, long hashSize, @CheckForNull byte[] dictionary, long offset, long limit, OutputStream out) {
+        this.artifacts = artifacts;
+        this.options = options;
+        this.references = references;
+        this.hashSize = hashSize;
+        this.dictionary = dictionary;
+        this.offset = offset;
+        this.limit = limit;
+        this.out = out;
+    }
+
+    @Override public Integer invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        int threads = options.threads();
+        int count = 0;
+        try (ZipWriter writer = new ZipWriter(new BufferedOutputStream(out, 64 * 1024), offset)) {
+            if (threads == 1) {
+                ZipWriter.SolidBlock block = new ZipWriter.SolidBlock();
+                for (Map.Entry<String,String> artifact : artifacts.entrySet()) {
+                    if (count > 0 && writer.position() - offset >= limit) {
+                        break;
+                    }
+                    count++;
+                    File file = new File(workspace, artifact.getValue());
+                    String reference = references.get(artifact.getKey());
+                    if (file.isDirectory()) {
+                        writer.putDirectory(artifact.getKey(), file.lastModified());
+                    } else if (reference != null) {
+                        writer.putReference(artifact.getKey(), file, IOUtils.mode(file), ContentHasher.unhex(reference));
+                    } else {
+                        int level = options.level(file);
+                        MessageDigest digest = digest(file);
+                        if (solid(file, level, digest)) {
+                            block.add(artifact.getKey(), file, IOUtils.mode(file));
+                            if (block.size() >= SOLID_BLOCK_SIZE) {
+                                writer.putBlock(block, block.deflate(options.compression.level, dictionary), dictionary != null);
+                                block = new ZipWriter.SolidBlock();
+                            }
+                        } else {
+                            writer.putFile(artifact.getKey(), file, IOUtils.mode(file), level, digest, dictionary(file, level, digest));
+                        }
+                    }
+                }
+                if (!block.isEmpty()) {
+                    writer.putBlock(block, block.deflate(options.compression.level, dictionary), dictionary != null);
+                }
+            } else {
+                ExecutorService pool = Executors.newFixedThreadPool(threads, new CompressorThreadFactory());
+                try {
+                    count = new Pipeline(writer, pool, 2 * threads).run(workspace);
+                } finally {
+                    pool.shutdownNow();
+                }
+            }
+            writer.finish();
+        }
+        return count;
+    }
+
+    /**
+     * Something to write to the archive once everything before it was.
+     */
+    private interface Step {
+        void write(ZipWriter writer) throws IOException;
+    }
+
+    private final class Pipeline {
+
+        private final ZipWriter writer;
+        private final ExecutorService pool;
+        /** Chunks being compressed, beyond which reading waits for writing to catch up. */
+        private final int limit;
+        private final Queue<Future<Step>> steps = new ArrayDeque<>();
+        private int compressing;
+        private ZipWriter.SolidBlock block = new ZipWriter.SolidBlock();
+
+        Pipeline(ZipWriter writer, ExecutorService pool, int limit) {
+            this.writer = writer;
+            this.pool = pool;
+            this.limit = limit;
+        }
+
+        int run(File workspace) throws IOException, InterruptedException {
+            int count = 0;
+            for (Map.Entry<String,String> artifact : artifacts.entrySet()) {
+                // Approximate as compression runs ahead of writing
+                if (count > 0 && writer.position() - offset >= limit) {
+                    break;
+                }
+                count++;
+                String name = artifact.getKey();
+                File file = new File(workspace, artifact.getValue());
+                if (file.isDirectory()) {
+                    add(w -> w.putDirectory(name, file.lastModified()));
+                    continue;
+                }
+                int mode = IOUtils.mode(file);
+                String reference = references.get(name);
+                if (reference != null) {
+                    add(w -> w.putReference(name, file, mode, ContentHasher.unhex(reference)));
+                    continue;
+                }
+                int level = options.level(file);
+                MessageDigest digest = digest(file);
+                if (level == Deflater.NO_COMPRESSION) {
+                    add(w -> w.putFile(name, file, mode, level, digest, null));
+                    continue;
+                }
+                if (solid(file, level, digest)) {
+                    block.add(name, file, mode);
+                    if (block.size() >= SOLID_BLOCK_SIZE) {
+                        compressBlock();
+                    }
+                    continue;
+                }
+                byte[] dictionary = dictionary(file, level, digest);
+                add(w -> w.startEntry(name, file, mode, dictionary != null));
+                CRC32 crc = new CRC32();
+                long size = 0;
+                byte[] previous = dictionary;
+                try (InputStream in = new FileInputStream(file)) {
+                    byte[] chunk;
+                    while ((chunk = read(in)) != null) {
+                        crc.update(chunk, 0, chunk.length);
+                        if (digest != null) {
+                            digest.update(chunk);
+                        }
+                        boolean seekPoint = size > 0 && size % ZipWriter.SEEK_INTERVAL == 0;
+                        size += chunk.length;
+                        compress(chunk, seekPoint ? null : previous, level, seekPoint);
+                        previous = chunk;
+                    }
+                }
+                long checksum = crc.getValue();
+                long total = size;
+                byte[] hash = digest != null ? digest.digest() : null;
+                add(w -> {
+                    w.write(END_OF_STREAM, 0, END_OF_STREAM.length);
+                    w.endEntry(file, checksum, total, hash);
+                });
+            }
+            if (!block.isEmpty()) {
+                compressBlock();
+            }
+            while (!steps.isEmpty()) {
+                writeNext();
+            }
+            return count;
+        }
+
+        private void add(Step step) {
+            steps.add(CompletableFuture.completedFuture(step));
+        }
+
+        private void compress(byte[] chunk, byte[] previous, int level, boolean seekPoint) throws IOException, InterruptedException {
+            while (compressing >= limit) {
+                writeNext();
+            }
+            compressing++;
+            steps.add(pool.submit(() -> {
+                byte[] compressed = deflate(chunk, previous, level);
+                return w -> {
+                    compressing--;
+                    if (seekPoint) {
+                        w.seekPoint();
+                    }
+                    w.write(compressed, 0, compressed.length);
+                };
+            }));
+        }
+
+        private void compressBlock() throws IOException, InterruptedException {
+            ZipWriter.SolidBlock full = block;
+            block = new ZipWriter.SolidBlock();
+            while (compressing >= limit) {
+                writeNext();
+            }
+            compressing++;
+            steps.add(pool.submit(() -> {
+                byte[] compressed = full.deflate(options.compression.level, dictionary);
+                return w -> {
+                    compressing--;
+                    w.putBlock(full, compressed, dictionary != null);
+                };
+            }));
+        }
+
+        private void writeNext() throws IOException, InterruptedException {
+            try {
+                steps.remove().get().write(writer);
+            } catch (ExecutionException x) {
+                Throwable cause = x.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+    }
+
+    private @CheckForNull MessageDigest digest(File file) {
+        return hashSize != -1 && file.length() >= hashSize ? ContentHasher.sha256() : null;
+    }
+
+    /**
+     * Gets the dictionary to deflate a file with, if any.
+     * Hashed files get none, as their data may be copied to other archives which do not have the same dictionary.
+     */
+    private @CheckForNull byte[] dictionary(File file, int level, @CheckForNull MessageDigest digest) {
+        return dictionary != null && level != Deflater.NO_COMPRESSION && digest == null && file.length() < DeflateDictionary.MAX_FILE_SIZE ? dictionary : null;
+    }
+
+    /**
+     * Whether a file goes to a solid block.
+     * Hashed files do not, as their data may be copied to other archives on its own.
+     */
+    private boolean solid(File file, int level, @CheckForNull MessageDigest digest) {
+        return options.solid && level != Deflater.NO_COMPRESSION && digest == null && file.length() < SOLID_FILE_SIZE;
+    }
+
+    /**
+     * Reads up to a chunk of data.
+     * @return null at the end of the stream
+     */
+    private static byte[] read(InputStream in) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length = 0;
+        int read;
+        while (length < chunk.length && (read = in.read(chunk, length, chunk.length - length)) != -1) {
+            length += read;
+        }
+        if (length == 0) {
+            return null;
+        }
+        return length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+    }
+
+    /**
+     * Compresses a chunk into a non-final sequence of Deflate blocks ending on a byte boundary.
+     * @param previous chunk preceding this one in the same file, or the dictionary of the file, if any
+     */
+    private static byte[] deflate(byte[] chunk, byte[] previous, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (previous != null) {
+                int length = Math.min(previous.length, DICTIONARY_SIZE);
+                deflater.setDictionary(previous, previous.length - length, length);
+            }
+            deflater.setInput(chunk);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(chunk.length / 2);
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            // Output filling the buffer entirely may not be all there is
+            while ((length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)) == buffer.length) {
+                compressed.write(buffer, 0, length);
+            }
+            compressed.write(buffer, 0, length);
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static final class CompressorThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Compressing artifacts #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+}
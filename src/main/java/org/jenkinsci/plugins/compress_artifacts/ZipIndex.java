@@ -0,0 +1,1167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import javax.annotation.CheckForNull;
+
+import jenkins.util.Timer;
+
+/**
+ * In-memory copy of the central directory of an archive.
+ * Parsed once per archive revision and shared by all {@link ZipStorage} instances reading it,
+ * along with a single open handle used by all streams reading its entries.
+ */
+final class ZipIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(ZipIndex.class.getName());
+
+    /** Maximum number of archives whose index is kept in memory. */
+    static int CACHE_SIZE = Integer.getInteger(ZipIndex.class.getName() + ".cacheSize", 64);
+
+    /** Milliseconds after which an index not accessed is dropped from memory. */
+    static long EXPIRY = Long.getLong(ZipIndex.class.getName() + ".expiry", TimeUnit.MINUTES.toMillis(10));
+
+    /** Milliseconds for which the archive is kept open after its last reader is done. */
+    static long IDLE = Long.getLong(ZipIndex.class.getName() + ".idle", TimeUnit.SECONDS.toMillis(30));
+
+    /** Maximum number of bytes of inflated solid blocks kept in memory across all archives. */
+    static long BLOCK_CACHE_SIZE = Long.getLong(ZipIndex.class.getName() + ".blockCacheSize", 32 * 1024 * 1024);
+
+    /** Inflated solid blocks, by index and offset of the block. */
+    private static final WeightedCache<CacheKey> blocks = new WeightedCache<>(BLOCK_CACHE_SIZE);
+
+    /** Maximum number of bytes of content of small entries kept in memory across all archives, 0 disabling the cache. */
+    static long CONTENT_CACHE_SIZE = Long.getLong(ZipIndex.class.getName() + ".contentCacheSize", 16 * 1024 * 1024);
+
+    /** Entries larger than this are always read from the archive. */
+    static int CONTENT_CACHE_FILE_SIZE = Integer.getInteger(ZipIndex.class.getName() + ".contentCacheFileSize", 64 * 1024);
+
+    /** Content of small entries read through {@link #openCached}, by index and name of the entry. */
+    private static final WeightedCache<CacheKey> contents = new WeightedCache<>(CONTENT_CACHE_SIZE);
+
+    /** Cache of the content of small entries, for its statistics. */
+    static WeightedCache<?> contentCache() {
+        return contents;
+    }
+
+    /** Cache of inflated solid blocks, for its statistics. */
+    static WeightedCache<?> blockCache() {
+        return blocks;
+    }
+
+    private static final Map<File, Slot> cache = new LinkedHashMap<File, Slot>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<File, Slot> eldest) {
+            if (size() > CACHE_SIZE) {
+                eldest.getValue().retire();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Obtains the index of an archive, parsing it only if it was not yet seen or has changed on disk since.
+     * @return null if the archive does not exist
+     */
+    static @CheckForNull ZipIndex of(File archive) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(archive.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException x) {
+            invalidate(archive);
+            return null;
+        }
+
+        Long committed;
+        synchronized (updating) {
+            committed = updating.get(archive);
+        }
+
+        long now = System.currentTimeMillis();
+        Slot slot;
+        synchronized (cache) {
+            expire(now);
+            slot = cache.get(archive);
+            if (slot == null) {
+                slot = new Slot();
+                cache.put(archive, slot);
+            }
+            slot.lastAccess = now;
+        }
+
+        // Concurrent callers of the same archive wait for a single parse rather than each doing their own
+        synchronized (slot) {
+            if (committed != null) {
+                // Being appended to: what is cached or published is still valid, otherwise only read what was there before
+                if (slot.index == null && committed > 0) {
+                    slot.index = load(archive, attributes, committed);
+                }
+            } else if (slot.index == null || !slot.index.matches(attributes)) {
+                slot.retire();
+                slot.index = load(archive, attributes, attributes.size());
+            }
+            return slot.index;
+        }
+    }
+
+    /** Length of archives being updated, before the update started. */
+    private static final Map<File, Long> updating = new HashMap<>();
+
+    /**
+     * Waits for any other update of the archive to complete, then marks it as being updated.
+     * Until {@link #endUpdate} is called, readers only see the entries present so far,
+     * so the update may only append to the archive.
+     */
+    static void beginUpdate(File archive) throws InterruptedException {
+        synchronized (updating) {
+            while (updating.containsKey(archive)) {
+                updating.wait();
+            }
+            updating.put(archive, archive.length());
+        }
+    }
+
+    /**
+     * Lets readers of an archive being updated see the given entries before the central directory listing them is written.
+     * Their data must be complete, and stay where it is.
+     */
+    static void publish(File archive, Collection<Entry> entries) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(archive.toPath(), BasicFileAttributes.class);
+        ZipIndex index = new ZipIndex(archive, attributes, new ArrayList<>(entries), null);
+        Slot slot;
+        synchronized (cache) {
+            slot = cache.get(archive);
+            if (slot == null) {
+                slot = new Slot();
+                cache.put(archive, slot);
+            }
+            slot.lastAccess = System.currentTimeMillis();
+        }
+        synchronized (slot) {
+            ZipIndex previous = slot.index;
+            if (previous != null) {
+                // The archive is appended to in place, so what was published before can hand over its handle rather than each batch opening one
+                index.takeChannel(previous);
+            }
+            slot.retire();
+            slot.index = index;
+        }
+    }
+
+    /**
+     * Publishes the updated archive to readers.
+     */
+    static void endUpdate(File archive) {
+        invalidate(archive);
+        synchronized (updating) {
+            updating.remove(archive);
+            updating.notifyAll();
+        }
+    }
+
+    /**
+     * Drops any cached index of the archive, to be called whenever it is rewritten or deleted.
+     * Streams already open keep reading the previous revision.
+     */
+    static void invalidate(File archive) {
+        Slot slot;
+        synchronized (cache) {
+            slot = cache.remove(archive);
+        }
+        if (slot != null) {
+            slot.retire();
+        }
+    }
+
+    private static void expire(long now) {
+        // Access order puts the least recently used slots first
+        Iterator<Slot> it = cache.values().iterator();
+        while (it.hasNext()) {
+            Slot slot = it.next();
+            if (slot.lastAccess + EXPIRY >= now) {
+                break;
+            }
+            slot.retire();
+            it.remove();
+        }
+    }
+
+    private static final class Slot {
+        long lastAccess;
+        volatile ZipIndex index;
+
+        void retire() {
+            ZipIndex i = index;
+            if (i != null) {
+                i.retire();
+            }
+        }
+    }
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    /**
+     * Private method of entries deflated with the preset dictionary of the archive, see {@link DeflateDictionary}.
+     * Other tools cannot read such entries, but at least do not mistake them for plain deflated ones.
+     */
+    static final int DEFLATED_WITH_DICTIONARY = 0x4444;
+    /**
+     * Private method of entries with no data of their own, their content being part of a solid block.
+     * Such entries have no local header, their local header offset being that of the block.
+     */
+    static final int SOLID = 0x5353;
+
+    static final int EOCD_SIG = 0x06054b50;
+    static final int EOCD_LENGTH = 22;
+    static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    static final int ZIP64_LOCATOR_LENGTH = 20;
+    static final int ZIP64_EOCD_SIG = 0x06064b50;
+    static final int ZIP64_EOCD_LENGTH = 56;
+    static final int LOC_SIG = 0x04034b50;
+    static final int LOC_LENGTH = 30;
+    static final int CEN_SIG = 0x02014b50;
+    static final int CEN_LENGTH = 46;
+    static final int ZIP64_EXTRA = 0x0001;
+    static final int TIMESTAMP_EXTRA = 0x5455;
+    /**
+     * Private extra field listing where compressed data of an entry can be inflated from without what precedes:
+     * an int interval of uncompressed data, then the long offset in compressed data of each multiple of it.
+     */
+    static final int SEEK_EXTRA = 0x4b53;
+    /**
+     * Private extra field holding the SHA-256 of the content of an entry: a byte telling whether the content is
+     * in the entry itself ({@link #HASH_INLINE}) or only in {@link BlobStore} ({@link #HASH_BLOB}), the hash,
+     * and for the latter the long size of the content, the entry itself being empty.
+     */
+    static final int HASH_EXTRA = 0x4853;
+    static final int HASH_INLINE = 0;
+    static final int HASH_BLOB = 1;
+    /**
+     * Private extra field of solid blocks and the entries they hold: a byte telling which it is,
+     * {@link #SOLID_BLOCK} or {@link #SOLID_MEMBER}, and for the latter the long offset of its content in the inflated block.
+     */
+    static final int SOLID_EXTRA = 0x4253;
+    static final int SOLID_BLOCK = 0;
+    static final int SOLID_MEMBER = 1;
+    static final long MAGIC32 = 0xFFFFFFFFL;
+    static final int MAGIC16 = 0xFFFF;
+
+    /**
+     * A file or directory entry of the archive.
+     */
+    static final class Entry {
+        final String name;
+        final int versionMadeBy;
+        final int flags;
+        final int method;
+        final long dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final int externalAttributes;
+        final long time;
+        final long localHeaderOffset;
+        /** Uncompressed length between seek points, or 0 if there are none. */
+        final int seekInterval;
+        /** Offsets in compressed data of the uncompressed offsets {@code (i + 1) * seekInterval}, or null. */
+        final long[] seekPoints;
+        /** SHA-256 of the content, when computed while archiving. */
+        final @CheckForNull byte[] hash;
+        /** Whether the content is not in the archive but in {@link BlobStore} under {@link #hash}. */
+        final boolean blob;
+        /** Whether this is a solid block, holding the content of several small entries and hidden from listings. */
+        final boolean block;
+        /** Offset of the content in the inflated solid block at {@link #localHeaderOffset}, or -1 if not part of one. */
+        final long blockPosition;
+        /** Offset of the data following the local header, as recorded in the {@link IndexFile} or else computed on demand. */
+        volatile long dataOffset;
+
+        Entry(String name, int versionMadeBy, int flags, int method, long dosTime, long crc, long compressedSize, long size, int externalAttributes, long time, long localHeaderOffset) {
+            this(name, versionMadeBy, flags, method, dosTime, crc, compressedSize, size, externalAttributes, time, localHeaderOffset, 0, null, null, false);
+        }
+
+        Entry(String name, int versionMadeBy, int flags, int method, long dosTime, long crc, long compressedSize, long size, int externalAttributes, long time, long localHeaderOffset,
+                int seekInterval, long[] seekPoints, @CheckForNull byte[] hash, boolean blob) {
+            this(name, versionMadeBy, flags, method, dosTime, crc, compressedSize, size, externalAttributes, time, localHeaderOffset, seekInterval, seekPoints, hash, blob, false, -1);
+        }
+
+        Entry(String name, int versionMadeBy, int flags, int method, long dosTime, long crc, long compressedSize, long size, int externalAttributes, long time, long localHeaderOffset,
+                int seekInterval, long[] seekPoints, @CheckForNull byte[] hash, boolean blob, boolean block, long blockPosition) {
+            this(name, versionMadeBy, flags, method, dosTime, crc, compressedSize, size, externalAttributes, time, localHeaderOffset, seekInterval, seekPoints, hash, blob, block, blockPosition, -1);
+        }
+
+        Entry(String name, int versionMadeBy, int flags, int method, long dosTime, long crc, long compressedSize, long size, int externalAttributes, long time, long localHeaderOffset,
+                int seekInterval, long[] seekPoints, @CheckForNull byte[] hash, boolean blob, boolean block, long blockPosition, long dataOffset) {
+            this.name = name;
+            this.versionMadeBy = versionMadeBy;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.externalAttributes = externalAttributes;
+            this.time = time;
+            this.localHeaderOffset = localHeaderOffset;
+            this.seekInterval = seekInterval;
+            this.seekPoints = seekPoints;
+            this.hash = hash;
+            this.blob = blob;
+            this.block = block;
+            this.blockPosition = blockPosition;
+            this.dataOffset = dataOffset;
+        }
+
+        /**
+         * Same entry with its local header moved elsewhere, when copied to another archive.
+         */
+        Entry at(long offset) {
+            return new Entry(name, versionMadeBy, flags, method, dosTime, crc, compressedSize, size, externalAttributes, time, offset, seekInterval, seekPoints, hash, blob, block, blockPosition);
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        /** Whether the content is part of a solid block rather than stored on its own. */
+        boolean isSolid() {
+            return blockPosition >= 0;
+        }
+
+        @Override public String toString() {
+            return name;
+        }
+    }
+
+    /** Distinguishes the revisions of archives indexed since startup. */
+    private static final AtomicLong revisions = new AtomicLong();
+
+    private final File archive;
+    /** Unique to this index, telling what was read from it apart from what was read from other revisions. */
+    private final long revision = revisions.incrementAndGet();
+    private final long lastModified;
+    private final long length;
+    private final Object fileKey;
+    /** Index written along with the archive, if any, in which case it is used instead of the following maps, which are null. */
+    private final @CheckForNull IndexFile indexFile;
+    private final Map<String, Entry> entries;
+    /** Solid blocks by offset, also in {@link #entries} but hidden from lookups. */
+    private final Map<Long, Entry> solidBlocks;
+    /** Children of each directory path, including the root {@code ""} unless the archive is empty. */
+    private final Map<String, List<String>> directories;
+    private final boolean hasSolidBlocks;
+
+    /** Handle shared by all readers of this revision of the archive; null until first read and once closed. */
+    private volatile FileChannel channel;
+    private int readers; // guarded by this
+    private long lastRelease; // guarded by this
+    private boolean closeScheduled; // guarded by this
+    /** Set once this revision is no longer cached, so the handle can be closed as soon as unused. */
+    private volatile boolean retired;
+    /** Preset dictionary of the archive, read when first needed. */
+    private volatile byte[] dictionary;
+    /** Whether any content of this revision may be in {@link #contents}. */
+    private volatile boolean cachedContent;
+
+    private ZipIndex(File archive, BasicFileAttributes attributes, @CheckForNull List<Entry> entries, @CheckForNull IndexFile indexFile) {
+        this.archive = archive;
+        this.lastModified = attributes.lastModifiedTime().toMillis();
+        this.length = attributes.size();
+        this.fileKey = attributes.fileKey();
+        this.indexFile = indexFile;
+        if (indexFile != null) {
+            this.entries = null;
+            this.solidBlocks = null;
+            this.directories = null;
+            this.hasSolidBlocks = indexFile.hasBlocks();
+        } else {
+            this.entries = new LinkedHashMap<>(entries.size() * 4 / 3 + 1);
+            this.solidBlocks = new HashMap<>();
+            List<String> names = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                this.entries.put(entry.name, entry);
+                if (entry.block) {
+                    solidBlocks.put(entry.localHeaderOffset, entry);
+                } else {
+                    names.add(entry.name);
+                }
+            }
+            this.directories = tree(names);
+            this.hasSolidBlocks = !solidBlocks.isEmpty();
+        }
+    }
+
+    /**
+     * Takes over the handle of a previous revision of the same archive that nobody is reading, if open.
+     */
+    private void takeChannel(ZipIndex previous) {
+        FileChannel c;
+        synchronized (previous) {
+            c = previous.readers == 0 ? previous.channel : null;
+            if (c == null || !c.isOpen()) {
+                return;
+            }
+            previous.channel = null;
+        }
+        synchronized (this) {
+            channel = c;
+            lastRelease = System.currentTimeMillis();
+            scheduleClose();
+        }
+    }
+
+    /**
+     * Links every entry to its parent directory, creating implied directories along the way.
+     */
+    static Map<String, List<String>> tree(Collection<String> names) {
+        String[] sorted = names.toArray(new String[0]);
+        Arrays.sort(sorted); // so that children come out sorted too
+        Map<String, List<String>> tree = new HashMap<>();
+        for (String name : sorted) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (name.endsWith("/")) {
+                if (tree.containsKey(name)) {
+                    continue;
+                }
+                tree.put(name, new ArrayList<String>());
+            }
+            String child = name;
+            while (true) {
+                int slash = child.lastIndexOf('/', child.length() - 2);
+                String parent = slash == -1 ? "" : child.substring(0, slash + 1);
+                List<String> siblings = tree.get(parent);
+                if (siblings != null) {
+                    // Known directories are already linked to their own parent
+                    siblings.add(child);
+                    break;
+                }
+                siblings = new ArrayList<>();
+                siblings.add(child);
+                tree.put(parent, siblings);
+                if (parent.isEmpty()) {
+                    break;
+                }
+                child = parent;
+            }
+        }
+        for (Map.Entry<String, List<String>> dir : tree.entrySet()) {
+            dir.setValue(Collections.unmodifiableList(Arrays.asList(dir.getValue().toArray(new String[0]))));
+        }
+        return tree;
+    }
+
+    private boolean matches(BasicFileAttributes attributes) {
+        return lastModified == attributes.lastModifiedTime().toMillis()
+                && length == attributes.size()
+                && Objects.equals(fileKey, attributes.fileKey());
+    }
+
+    int size() {
+        return indexFile != null ? indexFile.size() : entries.size();
+    }
+
+    /**
+     * Entries in the order of the central directory.
+     */
+    Collection<Entry> entries() {
+        return indexFile != null ? indexFile.entries() : Collections.unmodifiableCollection(entries.values());
+    }
+
+    @CheckForNull Entry entry(String path) {
+        Entry entry = indexFile != null ? indexFile.entry(path) : entries.get(path);
+        return entry != null && !entry.block ? entry : null;
+    }
+
+    /**
+     * Checks whether the path (ending with {@code /}, or empty for the root) is a directory, be it explicit or implied by its contents.
+     */
+    boolean isDirectory(String dir) {
+        return indexFile != null ? indexFile.isDirectory(dir) : directories.containsKey(dir);
+    }
+
+    /**
+     * Lists sorted paths of immediate children of the given directory path; those of directories end with {@code /}.
+     */
+    List<String> list(String dir) {
+        List<String> children = indexFile != null ? indexFile.list(dir) : directories.get(dir);
+        return children != null ? children : Collections.<String>emptyList();
+    }
+
+    /**
+     * Opens the content of an entry for reading.
+     * The archive stays open until the returned stream is closed.
+     */
+    InputStream open(Entry entry) throws IOException {
+        if (entry.blob) {
+            ZipIndex blob = BlobStore.index(entry.hash);
+            return blob.open(BlobStore.entry(blob, entry.hash));
+        }
+        if (entry.isSolid()) {
+            Entry block = indexFile != null ? indexFile.block(entry.localHeaderOffset) : solidBlocks.get(entry.localHeaderOffset);
+            if (block == null || block.size > Integer.MAX_VALUE || entry.blockPosition + entry.size > block.size) {
+                throw new ZipException("Missing solid block of " + entry);
+            }
+            // A revision no longer current would only pollute the cache
+            byte[] data = retired ? readFully(block) : blocks.get(new CacheKey(this, block.localHeaderOffset), () -> readFully(block));
+            return new ByteArrayInputStream(data, (int) entry.blockPosition, (int) entry.size);
+        }
+        if (entry.method != STORED && entry.method != DEFLATED && entry.method != DEFLATED_WITH_DICTIONARY) {
+            throw new ZipException("Unsupported compression method " + entry.method + " of " + entry);
+        }
+        byte[] dictionary = entry.method == DEFLATED_WITH_DICTIONARY ? dictionary() : null;
+        RegionInputStream raw = openRaw(entry);
+        return entry.method == STORED ? raw : new EntryInflaterInputStream(entry, raw, dictionary);
+    }
+
+    /**
+     * Opens the content of an entry for reading like {@link #open}, serving small entries from memory once read.
+     * Meant for reads on behalf of users, which tend to come back to the same few entries,
+     * unlike reads going through every entry of the archive.
+     */
+    InputStream openCached(Entry entry) throws IOException {
+        if (CONTENT_CACHE_SIZE > 0 && !retired && !entry.blob && !entry.isDirectory() && entry.size > 0 && entry.size <= CONTENT_CACHE_FILE_SIZE) {
+            cachedContent = true;
+            return new ByteArrayInputStream(contents.get(new CacheKey(this, entry.name), () -> readFully(entry)));
+        }
+        return open(entry);
+    }
+
+    private byte[] readFully(Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE) {
+            throw new ZipException(entry + " is too large");
+        }
+        byte[] b = new byte[(int) entry.size];
+        try (InputStream in = open(entry)) {
+            if (in.readNBytes(b, 0, b.length) < b.length) {
+                throw new EOFException("Unexpected end of " + entry);
+            }
+        }
+        return b;
+    }
+
+    private byte[] dictionary() throws IOException {
+        byte[] d = dictionary;
+        if (d == null) {
+            d = Files.readAllBytes(DeflateDictionary.file(archive).toPath());
+            dictionary = d;
+        }
+        return d;
+    }
+
+    /**
+     * Opens the data of an entry as stored in the archive, compressed or not.
+     * Not applicable to {@link Entry#blob} entries, whose data is in another archive, nor to {@link Entry#isSolid} ones.
+     */
+    RegionInputStream openRaw(Entry entry) throws IOException {
+        if (entry.blob || entry.isSolid()) {
+            throw new IllegalArgumentException(entry + " is stored elsewhere");
+        }
+        acquire();
+        try {
+            long offset = dataOffset(entry);
+            return new RegionInputStream(offset, offset + entry.compressedSize);
+        } catch (IOException | RuntimeException x) {
+            release();
+            throw x;
+        }
+    }
+
+    private long dataOffset(Entry entry) throws IOException {
+        long offset = entry.dataOffset;
+        if (offset == -1) {
+            offset = dataOffset(channel(), entry);
+            entry.dataOffset = offset;
+        }
+        return offset;
+    }
+
+    /**
+     * Reads the local header of an entry to find where its data starts.
+     */
+    static long dataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer header = read(channel, entry.localHeaderOffset, LOC_LENGTH);
+        if (header.getInt(0) != LOC_SIG) {
+            throw new ZipException("Invalid local header of " + entry);
+        }
+        return entry.localHeaderOffset + LOC_LENGTH + (header.getShort(26) & MAGIC16) + (header.getShort(28) & MAGIC16);
+    }
+
+    private synchronized void acquire() throws IOException {
+        if (channel == null) {
+            channel = reopen();
+        }
+        readers++;
+    }
+
+    private synchronized void release() {
+        readers--;
+        if (readers == 0) {
+            lastRelease = System.currentTimeMillis();
+            if (retired) {
+                close();
+            } else {
+                scheduleClose();
+            }
+        }
+    }
+
+    /**
+     * Checks whether this revision was dropped from the cache, in which case a fresh index should be obtained.
+     */
+    boolean isRetired() {
+        return retired;
+    }
+
+    private void retire() {
+        synchronized (this) {
+            retired = true;
+            if (readers == 0) {
+                close();
+            }
+        }
+        if (hasSolidBlocks) {
+            blocks.invalidate(key -> key.revision == revision);
+        }
+        if (cachedContent) {
+            contents.invalidate(key -> key.revision == revision);
+        }
+    }
+
+    /**
+     * Identifies something read from a given revision of an archive, so that it is not served once the archive changes.
+     * Does not refer to the index itself, which would keep it and its handle from being collected until evicted.
+     */
+    private static final class CacheKey {
+        final File archive;
+        final long revision;
+        final Object id;
+
+        CacheKey(ZipIndex index, Object id) {
+            this.archive = index.archive;
+            this.revision = index.revision;
+            this.id = id;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return other.revision == revision && other.archive.equals(archive) && other.id.equals(id);
+        }
+
+        @Override public int hashCode() {
+            return (archive.hashCode() * 31 + Long.hashCode(revision)) * 31 + id.hashCode();
+        }
+    }
+
+    /**
+     * Gets the open handle.
+     * A reader interrupted in the middle of an I/O operation closes the channel for everyone, so reopen it if needed.
+     */
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c != null && c.isOpen()) {
+            return c;
+        }
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                channel = reopen();
+                if (readers == 0) {
+                    lastRelease = System.currentTimeMillis();
+                    scheduleClose();
+                }
+            }
+            return channel;
+        }
+    }
+
+    private FileChannel reopen() throws IOException {
+        ArtifactMetrics.archiveOpens.increment();
+        FileChannel c = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+        boolean same = false;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(archive.toPath(), BasicFileAttributes.class);
+            // Archives are only ever appended to in place, which leaves entries indexed so far where they were
+            same = fileKey != null ? fileKey.equals(attributes.fileKey()) && attributes.size() >= length : matches(attributes);
+        } catch (NoSuchFileException x) {
+            // not the same
+        }
+        if (!same) {
+            c.close();
+            throw new IOException(archive + " was modified while being read");
+        }
+        return c;
+    }
+
+    private void scheduleClose() {
+        assert Thread.holdsLock(this);
+        if (!closeScheduled && channel != null) {
+            closeScheduled = true;
+            Timer.get().schedule(new Runnable() {
+                @Override public void run() {
+                    closeIfIdle();
+                }
+            }, IDLE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void closeIfIdle() {
+        closeScheduled = false;
+        if (readers > 0) {
+            return; // the last one to leave reschedules
+        }
+        if (lastRelease + IDLE <= System.currentTimeMillis()) {
+            close();
+        } else {
+            scheduleClose();
+        }
+    }
+
+    private void close() {
+        assert Thread.holdsLock(this);
+        FileChannel c = channel;
+        channel = null;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "Failed to close " + archive, x);
+            }
+        }
+    }
+
+    /**
+     * Reads a range of the archive, releasing the handle once closed.
+     */
+    final class RegionInputStream extends InputStream {
+
+        private final long start;
+        private long position;
+        private final long end;
+        private boolean closed;
+
+        private RegionInputStream(long start, long end) {
+            this.start = start;
+            this.position = start;
+            this.end = end;
+        }
+
+        /**
+         * Moves to some offset of the region.
+         */
+        void seek(long offset) {
+            position = start + Math.min(offset, end - start);
+        }
+
+        @Override public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (position >= end) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            int read;
+            while (true) {
+                try {
+                    read = channel().read(buffer, position);
+                    break;
+                } catch (ClosedChannelException x) {
+                    if (Thread.interrupted()) {
+                        throw (InterruptedIOException) new InterruptedIOException().initCause(x);
+                    }
+                    // otherwise closed by an interrupt delivered to another reader, try again
+                }
+            }
+            if (read == -1) {
+                throw new EOFException("Unexpected end of " + archive);
+            }
+            position += read;
+            return read;
+        }
+
+        /**
+         * Hands the rest of the region to {@link FileChannel#transferTo}.
+         * Only a target that is itself a channel, such as a file, spares a copy through a heap buffer;
+         * servlet responses are not, so downloads of stored entries merely skip the {@link Inflater}.
+         */
+        @Override public long transferTo(OutputStream out) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            WritableByteChannel target = out instanceof WritableByteChannel ? (WritableByteChannel) out : Channels.newChannel(out);
+            long transferred = 0;
+            while (position < end) {
+                long count;
+                try {
+                    count = channel().transferTo(position, end - position, target);
+                } catch (ClosedChannelException x) {
+                    if (Thread.interrupted()) {
+                        throw (InterruptedIOException) new InterruptedIOException().initCause(x);
+                    }
+                    continue; // otherwise closed by an interrupt delivered to another reader, try again
+                }
+                if (count == 0 && channel().size() < end) {
+                    throw new EOFException("Unexpected end of " + archive);
+                }
+                position += count;
+                transferred += count;
+            }
+            return transferred;
+        }
+
+        @Override public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                release();
+            }
+        }
+    }
+
+    /**
+     * Inflates an entry, skipping ahead through its seek points when it has any.
+     */
+    private static final class EntryInflaterInputStream extends InflaterInputStream {
+
+        private final Entry entry;
+        private final RegionInputStream raw;
+        private boolean eof;
+        /** Uncompressed bytes read or skipped so far. */
+        private long position;
+
+        EntryInflaterInputStream(Entry entry, RegionInputStream raw, @CheckForNull byte[] dictionary) {
+            super(raw, new Inflater(true), 8192);
+            this.entry = entry;
+            this.raw = raw;
+            if (dictionary != null) {
+                inf.setDictionary(dictionary);
+            }
+        }
+
+        @Override protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                // Same as java.util.zip.ZipFile, the inflater may need one extra byte past the end of data
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override public long skip(long n) throws IOException {
+            long target = position + n;
+            if (entry.seekPoints != null && n > 0 && target < entry.size) {
+                int point = (int) Math.min(target / entry.seekInterval, entry.seekPoints.length);
+                long pointPosition = (long) point * entry.seekInterval;
+                if (point > 0 && pointPosition > position) {
+                    // Start over from the last seek point before the target rather than inflating everything up to it
+                    raw.seek(entry.seekPoints[point - 1]);
+                    inf.reset();
+                    len = 0;
+                    eof = false;
+                    long skipped = pointPosition - position;
+                    position = pointPosition;
+                    return skipped + super.skip(target - pointPosition);
+                }
+            }
+            return super.skip(n);
+        }
+
+        @Override public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    /**
+     * Indexes an archive, whose handle is only kept open once an entry is read, so that merely listing it holds none.
+     */
+    private static ZipIndex load(File archive, BasicFileAttributes attributes, long end) throws IOException {
+        long start = System.nanoTime();
+        if (end == attributes.size()) {
+            IndexFile indexFile = IndexFile.open(archive, attributes);
+            if (indexFile != null) {
+                LOGGER.log(Level.FINE, "Opened the index of {0} in {1}ms", new Object[] {archive, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+                ZipIndex index = new ZipIndex(archive, attributes, null, indexFile);
+                ArtifactMetrics.indexFileLoads.increment();
+                ArtifactMetrics.indexLoad.since(start);
+                return index;
+            }
+        }
+        List<Entry> entries;
+        ArtifactMetrics.archiveOpens.increment();
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            entries = readCentralDirectory(channel, end).entries;
+        }
+        LOGGER.log(Level.FINE, "Indexed {0} entries of {1} in {2}ms", new Object[] {entries.size(), archive, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+        ArtifactMetrics.indexLoad.since(start);
+        return new ZipIndex(archive, attributes, entries, null);
+    }
+
+    /**
+     * Entries listed in the central directory of an archive, in the order of the directory.
+     */
+    static final class CentralDirectory {
+        /** Where the central directory starts, so also where the data of the entries ends. */
+        final long offset;
+        final List<Entry> entries;
+
+        CentralDirectory(long offset, List<Entry> entries) {
+            this.offset = offset;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Parses the central directory of the archive ending at the given position.
+     */
+    static CentralDirectory readCentralDirectory(FileChannel channel, long end) throws IOException {
+        if (end < EOCD_LENGTH) {
+            throw new ZipException("Not a ZIP archive");
+        }
+
+        // The end of central directory record is followed by a comment of at most 64k
+        int tailLength = (int) Math.min(end, EOCD_LENGTH + MAGIC16 + ZIP64_LOCATOR_LENGTH);
+        ByteBuffer tail = read(channel, end - tailLength, tailLength);
+        int eocd = -1;
+        for (int i = tailLength - EOCD_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIG && i + EOCD_LENGTH + (tail.getShort(i + 20) & MAGIC16) <= tailLength) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long count = tail.getShort(eocd + 10) & MAGIC16;
+        long cenLength = tail.getInt(eocd + 12) & MAGIC32;
+        long cenOffset = tail.getInt(eocd + 16) & MAGIC32;
+        int locator = eocd - ZIP64_LOCATOR_LENGTH;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIG) {
+            ByteBuffer zip64 = read(channel, tail.getLong(locator + 8), ZIP64_EOCD_LENGTH);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIG) {
+                throw new ZipException("Invalid ZIP64 end of central directory");
+            }
+            count = zip64.getLong(32);
+            cenLength = zip64.getLong(40);
+            cenOffset = zip64.getLong(48);
+        }
+        if (cenLength > Integer.MAX_VALUE || cenOffset + cenLength > end) {
+            throw new ZipException("Invalid central directory");
+        }
+
+        ByteBuffer cen = read(channel, cenOffset, (int) cenLength);
+        List<Entry> entries = new ArrayList<>();
+        int pos = 0;
+        for (long i = 0; i < count; i++) {
+            if (pos + CEN_LENGTH > cen.limit() || cen.getInt(pos) != CEN_SIG) {
+                throw new ZipException("Invalid central directory entry #" + i);
+            }
+            int versionMadeBy = cen.getShort(pos + 4) & MAGIC16;
+            int flags = cen.getShort(pos + 8) & MAGIC16;
+            int method = cen.getShort(pos + 10) & MAGIC16;
+            long dosTime = cen.getInt(pos + 12) & MAGIC32;
+            long crc = cen.getInt(pos + 16) & MAGIC32;
+            long compressedSize = cen.getInt(pos + 20) & MAGIC32;
+            long size = cen.getInt(pos + 24) & MAGIC32;
+            int nameLength = cen.getShort(pos + 28) & MAGIC16;
+            int extraLength = cen.getShort(pos + 30) & MAGIC16;
+            int commentLength = cen.getShort(pos + 32) & MAGIC16;
+            int externalAttributes = cen.getInt(pos + 38);
+            long offset = cen.getInt(pos + 42) & MAGIC32;
+            int next = pos + CEN_LENGTH + nameLength + extraLength + commentLength;
+            if (next > cen.limit()) {
+                throw new ZipException("Invalid central directory entry #" + i);
+            }
+
+            // Same as java.util.zip.ZipFile, names are always read as UTF-8
+            byte[] name = new byte[nameLength];
+            cen.position(pos + CEN_LENGTH);
+            cen.get(name);
+
+            long time = -1;
+            int seekInterval = 0;
+            long[] seekPoints = null;
+            byte[] hash = null;
+            boolean blob = false;
+            boolean block = false;
+            long blockPosition = -1;
+            int extra = pos + CEN_LENGTH + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int tag = cen.getShort(extra) & MAGIC16;
+                int length = cen.getShort(extra + 2) & MAGIC16;
+                int data = extra + 4;
+                if (data + length > extraEnd) {
+                    break;
+                }
+                if (tag == ZIP64_EXTRA) {
+                    // Only the fields overflowing in the fixed part of the record are present, in this order
+                    int field = data;
+                    if (size == MAGIC32 && field + 8 <= data + length) {
+                        size = cen.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == MAGIC32 && field + 8 <= data + length) {
+                        compressedSize = cen.getLong(field);
+                        field += 8;
+                    }
+                    if (offset == MAGIC32 && field + 8 <= data + length) {
+                        offset = cen.getLong(field);
+                    }
+                } else if (tag == TIMESTAMP_EXTRA && length >= 5 && (cen.get(data) & 1) != 0) {
+                    time = TimeUnit.SECONDS.toMillis(cen.getInt(data + 1));
+                } else if (tag == SEEK_EXTRA && length >= 12 && (length - 4) % 8 == 0 && cen.getInt(data) > 0) {
+                    seekInterval = cen.getInt(data);
+                    seekPoints = new long[(length - 4) / 8];
+                    for (int p = 0; p < seekPoints.length; p++) {
+                        seekPoints[p] = cen.getLong(data + 4 + 8 * p);
+                    }
+                } else if (tag == HASH_EXTRA && length >= 33) {
+                    hash = new byte[32];
+                    cen.position(data + 1);
+                    cen.get(hash);
+                    if (cen.get(data) == HASH_BLOB && length >= 41) {
+                        blob = true;
+                        size = cen.getLong(data + 33);
+                    }
+                } else if (tag == SOLID_EXTRA && length >= 1) {
+                    if (cen.get(data) == SOLID_BLOCK) {
+                        block = true;
+                    } else if (cen.get(data) == SOLID_MEMBER && length >= 9) {
+                        blockPosition = cen.getLong(data + 1);
+                    }
+                }
+                extra = data + length;
+            }
+            if (time == -1) {
+                time = dosToJavaTime(dosTime);
+            }
+
+            String n = new String(name, StandardCharsets.UTF_8);
+            entries.add(new Entry(n, versionMadeBy, flags, method, dosTime, crc, compressedSize, size, externalAttributes, time, offset, seekInterval, seekPoints, hash, blob, block, blockPosition));
+            pos = next;
+        }
+        return new CentralDirectory(cenOffset, entries);
+    }
+
+    private static long dosToJavaTime(long dosTime) {
+        try {
+            return LocalDateTime.of(
+                    (int) ((dosTime >> 25) & 0x7f) + 1980,
+                    (int) ((dosTime >> 21) & 0x0f),
+                    (int) ((dosTime >> 16) & 0x1f),
+                    (int) ((dosTime >> 11) & 0x1f),
+                    (int) ((dosTime >> 5) & 0x3f),
+                    (int) ((dosTime << 1) & 0x3e)
+            ).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException x) { // out of range fields
+            return 0;
+        }
+    }
+
+    static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
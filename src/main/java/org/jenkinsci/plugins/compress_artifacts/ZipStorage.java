@@ -25,10 +25,12 @@
 package org.jenkinsci.plugins.compress_artifacts;
 
 import hudson.FilePath;
+import hudson.Functions;
 import hudson.Launcher;
 import hudson.model.BuildListener;
-import hudson.util.io.ArchiverFactory;
+import hudson.remoting.RemoteOutputStream;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -38,16 +40,31 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Enumeration;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipException;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import jenkins.util.VirtualFile;
@@ -56,35 +73,540 @@ import org.springframework.web.util.UriUtils;
 
 final class ZipStorage extends VirtualFile {
 
+    private static final Logger LOGGER = Logger.getLogger(ZipStorage.class.getName());
+
+    /** Whether to force what was archived to disk before publishing it, trading throughput for durability. */
+    static boolean FSYNC = Boolean.getBoolean(ZipStorage.class.getName() + ".fsync");
+
+    /** Number of artifacts sent by the agent at once, after which those archived so far are published to readers. */
+    static int BATCH_FILES = Integer.getInteger(ZipStorage.class.getName() + ".batchFiles", 1000);
+
+    /** Amount of archived data after which the agent finishes a batch early. */
+    static long BATCH_SIZE = Long.getLong(ZipStorage.class.getName() + ".batchSize", 64 * 1024 * 1024);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
     static VirtualFile root(File archive) {
-        return new ZipStorage(archive, "");
+        return new ZipStorage(archive, "", null);
+    }
+
+    /**
+     * @param path of a file, not of a directory
+     */
+    static VirtualFile file(File archive, String path) {
+        return new ZipStorage(archive, path, null);
+    }
+
+    /**
+     * Adds artifacts to the archive, replacing any previously archived under the same name.
+     * @param previous archive of the previous build, to copy unchanged files from if so configured
+     */
+    static void archive(File archive, @CheckForNull File previous, FilePath workspace, Launcher launcher, BuildListener listener, Map<String,String> artifacts, ArchiveOptions options) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        ZipIndex.beginUpdate(archive);
+        long length = archive.length();
+        // References to blobs taken on behalf of the archive, given back unless it ends up with them
+        List<String> retained = new ArrayList<>();
+        boolean success = false;
+        try {
+            ZipIndex previousIndex = (options.reuseUnchanged || options.dictionary) && previous != null ? ZipIndex.of(previous) : null;
+            Map<String, ZipIndex.Entry> reusable = reusable(previousIndex, options);
+            Map<String,String> references = references(workspace, artifacts, reusable, listener);
+
+            byte[] dictionary = options.dictionary ? DeflateDictionary.of(archive, previousIndex) : null;
+
+            long waited = WriteThrottle.acquire();
+            if (waited >= 1000) {
+                listener.getLogger().println("Waited " + waited / 1000 + "s for other archives being written");
+            }
+            List<ZipIndex.Entry> replaced;
+            // Time spent on the controller writing the archive, in however many steps
+            LongAdder finished = new LongAdder();
+            try {
+                if (options.deduplicate) {
+                    // Large files are bound for BlobStore, not for the archive: write a temporary archive, then append what is left of it
+                    File tempArchive = new File(archive.getAbsolutePath() + ".writing.zip");
+                    try {
+                        long transferring = System.nanoTime();
+                        try (FileChannel channel = FileChannel.open(tempArchive.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                                ChannelOutputStream os = new ChannelOutputStream(channel, 0)) {
+                            workspace.act(new ZipCompressor(artifacts, options, references, BlobStore.MIN_SIZE, dictionary, 0, Long.MAX_VALUE,
+                                    workspace.isRemote() ? new RemoteOutputStream(os) : os));
+                        }
+                        ArtifactMetrics.transfer.since(transferring);
+                        long finishing = System.nanoTime();
+                        resolve(tempArchive, tempArchive, previousIndex, reusable, retained, true);
+                        replaced = append(archive, tempArchive);
+                        finished.add(System.nanoTime() - finishing);
+                    } finally {
+                        Files.deleteIfExists(tempArchive.toPath());
+                    }
+                } else {
+                    replaced = stream(archive, workspace, artifacts, options, references, dictionary, previousIndex, reusable, finished);
+                }
+            } finally {
+                WriteThrottle.release();
+            }
+            success = true;
+            long finishing = System.nanoTime();
+            summarize(archive, length, artifacts.keySet(), references.keySet(), listener);
+            ArtifactMetrics.finish.add(finished.sum() + System.nanoTime() - finishing);
+            release(replaced);
+        } finally {
+            settle(retained, success);
+            ZipIndex.endUpdate(archive);
+            ArtifactMetrics.archive.since(start);
+        }
+    }
+
+    /**
+     * First half of archiving in the background: the agent compresses artifacts into a new archive on the controller,
+     * so that the build only waits for compressed data to be transferred, and {@link #archiveStaged} adds it to the archive later on.
+     * Nothing is written to the archive itself, so this may go on while earlier artifacts are being added to it.
+     * @param staged where to write the new archive, which only shows up there once complete
+     */
+    static void stage(File staged, File archive, @CheckForNull File previous, FilePath workspace, BuildListener listener, Map<String,String> artifacts, ArchiveOptions options) throws IOException, InterruptedException {
+        ZipIndex previousIndex = (options.reuseUnchanged || options.dictionary) && previous != null ? ZipIndex.of(previous) : null;
+        Map<String,String> references = references(workspace, artifacts, reusable(previousIndex, options), listener);
+        byte[] dictionary = options.dictionary ? DeflateDictionary.of(archive, previousIndex) : null;
+        File temp = new File(staged.getPath() + ".tmp");
+        long waited = WriteThrottle.acquire();
+        if (waited >= 1000) {
+            listener.getLogger().println("Waited " + waited / 1000 + "s for other archives being written");
+        }
+        try {
+            long transferring = System.nanoTime();
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    ChannelOutputStream os = new ChannelOutputStream(channel, 0)) {
+                workspace.act(new ZipCompressor(artifacts, options, references, options.hashing() ? BlobStore.MIN_SIZE : -1, dictionary, 0, Long.MAX_VALUE,
+                        workspace.isRemote() ? new RemoteOutputStream(os) : os));
+            }
+            ArtifactMetrics.transfer.since(transferring);
+            if (FSYNC) {
+                force(temp);
+            }
+            Files.move(temp.toPath(), staged.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            WriteThrottle.release();
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Second half of archiving in the background: adds an archive written by {@link #stage} to the archive, without recompressing anything,
+     * then deletes it.
+     * On failure it is left as is, to be added again.
+     * @param previous archive of the previous build, as when staging
+     */
+    static void archiveStaged(File archive, @CheckForNull File previous, File staged, ArchiveOptions options, BuildListener listener) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        ZipIndex.beginUpdate(archive);
+        long length = archive.length();
+        List<String> retained = new ArrayList<>();
+        boolean success = false;
+        File resolved = new File(archive.getAbsolutePath() + ".writing.zip");
+        try {
+            Set<String> names = new HashSet<>();
+            // Only artifacts copied from the previous build are references when staged, those bound for BlobStore being moved there below
+            Set<String> reused = new HashSet<>();
+            try (FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.READ)) {
+                for (ZipIndex.Entry entry : ZipIndex.readCentralDirectory(channel, channel.size()).entries) {
+                    if (!entry.block) {
+                        names.add(entry.name);
+                    }
+                    if (entry.blob) {
+                        reused.add(entry.name);
+                    }
+                }
+            }
+            ZipIndex previousIndex = options.reuseUnchanged && previous != null ? ZipIndex.of(previous) : null;
+
+            long waited = WriteThrottle.acquire();
+            if (waited >= 1000) {
+                listener.getLogger().println("Waited " + waited / 1000 + "s for other archives being written");
+            }
+            List<ZipIndex.Entry> replaced;
+            try {
+                resolve(staged, resolved, previousIndex, reusable(previousIndex, options), retained, options.deduplicate);
+                replaced = append(archive, resolved);
+            } finally {
+                WriteThrottle.release();
+            }
+            success = true;
+            summarize(archive, length, names, reused, listener);
+            release(replaced);
+            Files.delete(staged.toPath());
+            ArtifactMetrics.finish.since(start);
+        } finally {
+            Files.deleteIfExists(resolved.toPath());
+            settle(retained, success);
+            ZipIndex.endUpdate(archive);
+            ArtifactMetrics.archive.since(start);
+        }
+    }
+
+    /**
+     * Entries of the previous archive by hash of their content, if to be copied in place of unchanged artifacts.
+     */
+    private static Map<String, ZipIndex.Entry> reusable(@CheckForNull ZipIndex previous, ArchiveOptions options) {
+        Map<String, ZipIndex.Entry> reusable = new HashMap<>();
+        if (previous != null && options.reuseUnchanged) {
+            for (ZipIndex.Entry entry : previous.entries()) {
+                if (entry.hash != null && !entry.blob) {
+                    reusable.put(ContentHasher.hex(entry.hash), entry);
+                }
+            }
+        }
+        return reusable;
+    }
+
+    /**
+     * Has the agent hash artifacts to find those unchanged since the previous build.
+     * @return hashes of those to be sent as references only, by path in the archive
+     */
+    private static Map<String,String> references(FilePath workspace, Map<String,String> artifacts, Map<String, ZipIndex.Entry> reusable, BuildListener listener) throws IOException, InterruptedException {
+        Map<String,String> references = new HashMap<>();
+        // Only content of the previous build of the same job is spared transfer on the word of the agent;
+        // content already in BlobStore is sent anyway, to be hashed here before referring to it
+        if (!reusable.isEmpty()) {
+            long hashing = System.nanoTime();
+            Map<String,String> hashes = workspace.act(new ContentHasher(artifacts, BlobStore.MIN_SIZE));
+            ArtifactMetrics.hash.since(hashing);
+            for (Map.Entry<String,String> hash : hashes.entrySet()) {
+                if (reusable.containsKey(hash.getValue())) {
+                    references.put(hash.getKey(), hash.getValue());
+                }
+            }
+        }
+        if (!references.isEmpty()) {
+            listener.getLogger().println("Skipping transfer of " + references.size() + " artifacts already archived");
+        }
+        return references;
     }
 
-    // TODO support updating entries
-    static void archive(File archive, FilePath workspace, Launcher launcher, BuildListener listener, Map<String,String> artifacts) throws IOException, InterruptedException {
-        // Use temporary file for writing, rename when done
-        File tempArchive = new File(archive.getAbsolutePath() + ".writing.zip");
+    /**
+     * Gives back references to blobs of entries no longer listed.
+     */
+    private static void release(List<ZipIndex.Entry> replaced) throws IOException {
+        for (ZipIndex.Entry entry : replaced) {
+            if (entry.blob) {
+                BlobStore.release(ContentHasher.hex(entry.hash));
+            }
+        }
+    }
 
-        OutputStream os = new FileOutputStream(tempArchive);
+    /**
+     * Settles references to blobs taken on behalf of an archive, given back unless it ended up with them.
+     */
+    private static void settle(List<String> retained, boolean success) throws IOException {
         try {
-            workspace.archive(ArchiverFactory.ZIP, os, new FilePath.ExplicitlySpecifiedDirScanner(artifacts));
+            if (!success) {
+                for (String hash : retained) {
+                    BlobStore.release(hash);
+                }
+            }
         } finally {
-            os.close();
+            BlobStore.settle(retained);
         }
+    }
 
-        tempArchive.renameTo(archive);
+    /**
+     * Writes the index file of an archive just written and accounts for what was added to it.
+     * Artifacts copied from the previous build or moved to {@link BlobStore} are left out, as they were not compressed into the archive.
+     * @param length length of the archive before
+     * @param names names of the artifacts just added
+     * @param reused names of artifacts copied from the previous build
+     */
+    private static void summarize(File archive, long length, Set<String> names, Set<String> reused, BuildListener listener) {
+        try {
+            List<ZipIndex.Entry> entries;
+            try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+                entries = ZipIndex.readCentralDirectory(channel, channel.size()).entries;
+            }
+            long archived = 0;
+            long copied = 0;
+            for (ZipIndex.Entry entry : entries) {
+                if (entry.isDirectory() || !names.contains(entry.name) || entry.blob) {
+                    continue;
+                }
+                if (reused.contains(entry.name)) {
+                    copied += entry.compressedSize;
+                } else {
+                    archived += entry.size;
+                }
+            }
+            long stored = Math.max(0, archive.length() - length - copied);
+            ArtifactMetrics.bytesArchived.add(archived);
+            ArtifactMetrics.bytesStored.add(stored);
+            if (archived > 0) {
+                listener.getLogger().println("Compressed " + Functions.humanReadableByteSize(archived) + " of artifacts to " + Functions.humanReadableByteSize(stored));
+            }
+            if (IndexFile.ENABLED) {
+                IndexFile.write(archive, entries);
+            }
+        } catch (IOException x) {
+            // Readers parse the central directory instead
+            LOGGER.log(Level.WARNING, "Failed to index " + archive, x);
+        }
+    }
+
+    /**
+     * Writes artifacts sent by the agent straight past the end of the archive, without going through a temporary file,
+     * followed by a new central directory listing both old and new entries.
+     * The agent sends artifacts in batches, the entries of each being published to readers as soon as it is written.
+     * Nothing written so far is overwritten, so readers of the current content are not disturbed,
+     * and on failure the archive is truncated back to its original state.
+     * @param reusable entries of the previous archive by hash, copied in place of references to them
+     * @param finished adds up the time spent writing what the agent sent
+     * @return entries no longer listed, replaced by added ones
+     */
+    private static List<ZipIndex.Entry> stream(File archive, FilePath workspace, Map<String,String> artifacts, ArchiveOptions options, Map<String,String> references,
+            @CheckForNull byte[] dictionary, @CheckForNull ZipIndex previous, Map<String, ZipIndex.Entry> reusable, LongAdder finished) throws IOException, InterruptedException {
+        boolean created = !archive.exists();
+        boolean success = false;
+        try (FileChannel target = FileChannel.open(archive.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = target.size();
+            Map<String, ZipIndex.Entry> entries = new LinkedHashMap<>();
+            if (end > 0) {
+                for (ZipIndex.Entry entry : ZipIndex.readCentralDirectory(target, end).entries) {
+                    entries.put(entry.name, entry);
+                }
+            }
+            List<ZipIndex.Entry> replaced = new ArrayList<>();
+            try (ChannelOutputStream out = new ChannelOutputStream(target, end)) {
+                Iterator<Map.Entry<String,String>> it = artifacts.entrySet().iterator();
+                Map<String,String> batch = new LinkedHashMap<>();
+                do {
+                    while (batch.size() < BATCH_FILES && it.hasNext()) {
+                        Map.Entry<String,String> artifact = it.next();
+                        batch.put(artifact.getKey(), artifact.getValue());
+                    }
+                    Map<String,String> batchReferences = new HashMap<>();
+                    for (String name : batch.keySet()) {
+                        String reference = references.get(name);
+                        if (reference != null) {
+                            batchReferences.put(name, reference);
+                        }
+                    }
+                    long start = out.position();
+                    long transferring = System.nanoTime();
+                    int count = workspace.act(new ZipCompressor(batch, options, batchReferences, options.hashing() ? BlobStore.MIN_SIZE : -1, dictionary, start, BATCH_SIZE,
+                            workspace.isRemote() ? new RemoteOutputStream(out) : out));
+                    out.flush();
+                    ArtifactMetrics.transfer.since(transferring);
+                    long finishing = System.nanoTime();
+
+                    // The central directory of the batch gets overwritten by what comes next
+                    ZipIndex.CentralDirectory added = ZipIndex.readCentralDirectory(target, out.position());
+                    ZipWriter writer = new ZipWriter(out.at(added.offset), added.offset);
+                    for (ZipIndex.Entry entry : added.entries) {
+                        if (entry.blob) {
+                            ZipIndex.Entry source = reusable.get(ContentHasher.hex(entry.hash));
+                            if (source == null || previous == null) {
+                                throw new ZipException("Unexpected reference to " + ContentHasher.hex(entry.hash) + " for " + entry.name);
+                            }
+                            try (InputStream raw = previous.openRaw(source)) {
+                                writer.copyEntry(entry.name, entry, source, raw);
+                            }
+                        } else {
+                            add(entries, entry, replaced);
+                        }
+                    }
+                    for (ZipIndex.Entry entry : writer.entries()) {
+                        add(entries, entry, replaced);
+                    }
+                    out.flush();
+                    if (FSYNC) {
+                        target.force(false);
+                    }
+                    ZipIndex.publish(archive, entries.values());
+                    finished.add(System.nanoTime() - finishing);
+
+                    Iterator<String> done = batch.keySet().iterator();
+                    for (int i = 0; i < count && done.hasNext(); i++) {
+                        done.next();
+                        done.remove();
+                    }
+                } while (!batch.isEmpty() || it.hasNext());
+
+                long finishing = System.nanoTime();
+                ZipWriter writer = new ZipWriter(out, out.position());
+                writer.finish(entries.values());
+                target.truncate(writer.position());
+                if (FSYNC) {
+                    target.force(true);
+                }
+                finished.add(System.nanoTime() - finishing);
+                success = true;
+                return replaced;
+            } finally {
+                if (!success) {
+                    target.truncate(end);
+                }
+            }
+        } finally {
+            if (!success && created) {
+                Files.deleteIfExists(archive.toPath());
+            }
+        }
+    }
+
+    private static void add(Map<String, ZipIndex.Entry> entries, ZipIndex.Entry entry, List<ZipIndex.Entry> replaced) {
+        ZipIndex.Entry previous = entries.remove(entry.name); // so that replaced entries come last, as their data does
+        if (previous != null) {
+            replaced.add(previous);
+        }
+        entries.put(entry.name, entry);
+    }
+
+    private static void force(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Completes a new archive written by the agent.
+     * Data of files the agent only referred to is copied as is from the previous archive,
+     * and when deduplicating the content of other large files is moved to {@link BlobStore} once its hash is checked, leaving references in their place.
+     * @param target where to write the completed archive, which may be the same
+     * @param reusable entries of the previous archive by hash
+     * @param stored collects hashes of the blobs now referred to
+     */
+    private static void resolve(File archive, File target, @CheckForNull ZipIndex previous, Map<String, ZipIndex.Entry> reusable, List<String> stored, boolean deduplicate) throws IOException {
+        File resolved = new File(target.getPath() + ".resolve");
+        ZipIndex index = ZipIndex.of(archive);
+        if (index == null) {
+            throw new FileNotFoundException(archive + " (No such file or directory)");
+        }
+        try {
+            try (ZipWriter writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(resolved)), 0)) {
+                // Where solid blocks were copied to, by their original offset; they come before the entries they hold
+                Map<Long, Long> blocks = new HashMap<>();
+                for (ZipIndex.Entry entry : index.entries()) {
+                    if (entry.isSolid()) {
+                        Long block = blocks.get(entry.localHeaderOffset);
+                        if (block == null) {
+                            throw new ZipException("Missing solid block of " + entry);
+                        }
+                        writer.putSolid(entry, block);
+                    } else if (entry.blob) {
+                        ZipIndex.Entry source = reusable.get(ContentHasher.hex(entry.hash));
+                        if (source == null || previous == null) {
+                            throw new ZipException("Unexpected reference to " + ContentHasher.hex(entry.hash) + " for " + entry.name);
+                        }
+                        try (InputStream raw = previous.openRaw(source)) {
+                            writer.copyEntry(entry.name, entry, source, raw);
+                        }
+                    } else if (entry.hash != null && deduplicate) {
+                        String hash = ContentHasher.hex(entry.hash);
+                        BlobStore.store(hash, index, entry);
+                        stored.add(hash);
+                        writer.putReference(entry);
+                    } else {
+                        if (entry.block) {
+                            blocks.put(entry.localHeaderOffset, writer.position());
+                        }
+                        try (InputStream raw = index.openRaw(entry)) {
+                            writer.copyEntry(entry.name, entry, entry, raw);
+                        }
+                    }
+                }
+                writer.finish();
+            }
+            ZipIndex.invalidate(archive);
+            Files.move(resolved.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            ZipIndex.invalidate(archive);
+            ZipIndex.invalidate(target);
+            Files.deleteIfExists(resolved.toPath());
+        }
+    }
+
+    /**
+     * Appends entries of another archive without recompressing anything.
+     * Their data is copied past the end of the current archive, followed by a new central directory listing both old and new entries.
+     * Nothing written so far is overwritten, so readers of the current content are not disturbed,
+     * and on failure the archive is truncated back to its original state.
+     * @return entries no longer listed, replaced by added ones
+     */
+    private static List<ZipIndex.Entry> append(File archive, File addition) throws IOException {
+        if (!archive.exists()) {
+            if (FSYNC) {
+                force(addition);
+            }
+            Files.move(addition.toPath(), archive.toPath());
+            return Collections.emptyList();
+        }
+        try (FileChannel target = FileChannel.open(archive.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                FileChannel source = FileChannel.open(addition.toPath(), StandardOpenOption.READ)) {
+            long end = target.size();
+            ZipIndex.CentralDirectory existing = ZipIndex.readCentralDirectory(target, end);
+            ZipIndex.CentralDirectory added = ZipIndex.readCentralDirectory(source, source.size());
+            try {
+                target.position(end);
+                long copied = 0;
+                while (copied < added.offset) {
+                    long length = Math.min(added.offset - copied, BUFFER_SIZE);
+                    WriteThrottle.consume(length);
+                    copied += source.transferTo(copied, length, target);
+                }
+
+                Map<String, ZipIndex.Entry> entries = new LinkedHashMap<>();
+                for (ZipIndex.Entry entry : existing.entries) {
+                    entries.put(entry.name, entry);
+                }
+                List<ZipIndex.Entry> replaced = new ArrayList<>();
+                for (ZipIndex.Entry entry : added.entries) {
+                    ZipIndex.Entry previous = entries.remove(entry.name); // so that replaced entries come last, as their data does
+                    if (previous != null) {
+                        replaced.add(previous);
+                    }
+                    entries.put(entry.name, entry.at(end + entry.localHeaderOffset));
+                }
+                if (FSYNC) {
+                    target.force(false);
+                }
+                ZipWriter writer = new ZipWriter(new BufferedOutputStream(Channels.newOutputStream(target)), end + copied);
+                writer.finish(entries.values());
+                if (FSYNC) {
+                    target.force(false);
+                }
+                return replaced;
+            } catch (IOException | RuntimeException x) {
+                target.truncate(end);
+                throw x;
+            }
+        }
     }
 
     static boolean delete(File archive) throws IOException, InterruptedException {
-        return archive.delete();
+        ZipIndex index = ZipIndex.of(archive);
+        ZipIndex.invalidate(archive);
+        if (!archive.delete()) {
+            return false;
+        }
+        Files.deleteIfExists(DeflateDictionary.file(archive).toPath());
+        Files.deleteIfExists(IndexFile.file(archive).toPath());
+        if (index != null) {
+            for (ZipIndex.Entry entry : index.entries()) {
+                if (entry.blob) {
+                    BlobStore.release(ContentHasher.hex(entry.hash));
+                }
+            }
+        }
+        return true;
     }
 
     private final File archive;
     private final String path;
+    /** Index this file was resolved against, passed on to files derived from it so they need not look it up again. */
+    private transient volatile ZipIndex index;
 
-    private ZipStorage(File archive, String path) {
+    private ZipStorage(File archive, String path, @CheckForNull ZipIndex index) {
         this.archive = archive;
         this.path = path;
+        this.index = index;
     }
     
     @Override public String getName() {
@@ -92,6 +614,10 @@ final class ZipStorage extends VirtualFile {
     }
     
     @Override public URI toURI() {
+        return toURI(path);
+    }
+
+    static URI toURI(String path) {
         try {
             // If no scheme is provided, beginning of the path is parsed as the scheme causing validation problems.
             // Using some scheme to workaround that + prepending prefix to avoid empty URI path.
@@ -102,134 +628,107 @@ final class ZipStorage extends VirtualFile {
     }
 
     @Override public VirtualFile getParent() {
+        String parent = parent(path);
+        return parent != null ? new ZipStorage(archive, parent, index) : null;
+    }
+
+    /**
+     * @return path of the directory holding a file or directory, or null for the root
+     */
+    static @CheckForNull String parent(String path) {
         int length = path.length();
         if (length == 0) return null; // Root has no parent
 
         int last = path.lastIndexOf('/');
-        if (last < 0) return root(archive); // Top level file
+        if (last < 0) return ""; // Top level file
 
         if (last + 1 != length) {
-            return new ZipStorage(archive, path.substring(0, last + 1));
+            return path.substring(0, last + 1);
         }
 
         // trailing '/' found
         last = path.lastIndexOf('/', last - 1);
-        if (last == -1) return root(archive); // Top level dir
+        if (last == -1) return ""; // Top level dir
 
-        return new ZipStorage(archive, path.substring(0, last + 1));
+        return path.substring(0, last + 1);
     }
 
     private boolean looksLikeDir() {
         return path.length() == 0 || path.endsWith("/");
     }
+
+    private @CheckForNull ZipIndex index() throws IOException {
+        ZipIndex i = index;
+        if (i == null || i.isRetired()) {
+            i = ZipIndex.of(archive);
+            index = i;
+        }
+        return i;
+    }
+
+    private @CheckForNull ZipIndex.Entry entry() throws IOException {
+        ZipIndex index = index();
+        return index != null ? index.entry(path) : null;
+    }
     
     @Override public boolean isDirectory() throws IOException {
-        if (!looksLikeDir() || !archive.exists()) {
-            return false;
-        }
-        ZipFile zf = new ZipFile(archive);
-        try {
-            Enumeration<? extends ZipEntry> entries = zf.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                String p = entry.getName();
-                if (p.startsWith(path)) {
-                    return true;
-                }
-            }
+        if (!looksLikeDir()) {
             return false;
-        } finally {
-            zf.close();
         }
+        ZipIndex index = index();
+        return index != null && index.isDirectory(path);
     }
     
     @Override public boolean isFile() throws IOException {
-        if (looksLikeDir() || !archive.exists()) {
+        if (looksLikeDir()) {
             return false;
         }
-        ZipFile zf = new ZipFile(archive);
-        try {
-            return zf.getEntry(path) != null;
-        } finally {
-            zf.close();
-        }
+        return entry() != null;
     }
     
     @Override public boolean exists() throws IOException {
-        if (!archive.exists()) return false;
-
-        ZipFile zf = new ZipFile(archive);
-        try {
-            Enumeration<? extends ZipEntry> entries = zf.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                String p = entry.getName();
-                if (looksLikeDir() ? p.startsWith(path) : p.equals(path)) {
-                    return true;
-                }
-            }
-            return false;
-        } finally {
-            zf.close();
-        }
+        return looksLikeDir() ? isDirectory() : isFile();
     }
     
     @Override public VirtualFile[] list() throws IOException {
-        if (!looksLikeDir() || !archive.exists()) {
+        if (!looksLikeDir()) {
             return new VirtualFile[0];
         }
-        ZipFile zf = new ZipFile(archive);
-        try {
-            Set<VirtualFile> files = new HashSet<VirtualFile>();
-            Enumeration<? extends ZipEntry> entries = zf.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                String p = entry.getName();
-                if (p.startsWith(path)) {
-                    String pth = path + p.substring(path.length()).replaceFirst("/.+", "/");
-                    files.add(new ZipStorage(archive, pth));
-                }
-            }
-            return files.toArray(new VirtualFile[files.size()]);
-        } finally {
-            zf.close();
+        ZipIndex index = index();
+        if (index == null) {
+            return new VirtualFile[0];
         }
+        List<String> children = index.list(path);
+        VirtualFile[] files = new VirtualFile[children.size()];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new ZipStorage(archive, children.get(i), index);
+        }
+        return files;
     }
     
     @Override public VirtualFile child(String name) {
-        // TODO this is ugly; would be better to not require / on path
-        ZipStorage f = new ZipStorage(archive, path + name + '/');
+        ZipIndex index = null;
         try {
-            if (f.isDirectory()) {
-                return f;
-            }
+            index = index();
         } catch (IOException x) {
+            // treat as missing
         }
-        return new ZipStorage(archive, path + name);
+        // TODO this is ugly; would be better to not require / on path
+        String dir = path + name + '/';
+        if (index != null && index.isDirectory(dir)) {
+            return new ZipStorage(archive, dir, index);
+        }
+        return new ZipStorage(archive, path + name, index);
     }
     
     @Override public long length() throws IOException {
-        if (!archive.exists()) return 0;
-
-        ZipFile zf = new ZipFile(archive);
-        try {
-            ZipEntry entry = zf.getEntry(path);
-            return entry != null ? entry.getSize() : 0;
-        } finally {
-            zf.close();
-        }
+        ZipIndex.Entry entry = entry();
+        return entry != null ? entry.size : 0;
     }
     
     @Override public long lastModified() throws IOException {
-        if (!archive.exists()) return 0;
-
-        ZipFile zf = new ZipFile(archive);
-        try {
-            ZipEntry entry = zf.getEntry(path);
-            return entry != null ? entry.getTime() : 0;
-        } finally {
-            zf.close();
-        }
+        ZipIndex.Entry entry = entry();
+        return entry != null ? entry.time : 0;
     }
     
     @Override public boolean canRead() throws IOException {
@@ -237,56 +736,154 @@ final class ZipStorage extends VirtualFile {
     }
 
     @Override public InputStream open() throws IOException {
-        if (!archive.exists()) throw new FileNotFoundException(path + " (No such file or directory)");
-
         if (looksLikeDir()) {
             // That is what java.io.FileInputStream.open throws
             throw new FileNotFoundException(this + " (Is a directory)");
         }
-        final ZipFile zf = new ZipFile(archive);
-        ZipEntry entry = zf.getEntry(path);
+        ZipIndex index = index();
+        ZipIndex.Entry entry = index != null ? index.entry(path) : null;
         if (entry == null) {
-            zf.close();
             throw new FileNotFoundException(path + " (No such file or directory)");
         }
 
-        return new EntryInputStream(zf, entry);
+        return new EntryInputStream(archive, path, index.openCached(entry));
+    }
+
+    /**
+     * Writes selected files to a new archive by copying their compressed data and checksums as they are,
+     * so that downloading many artifacts at once costs no compression on the controller.
+     */
+    @Override public int zip(OutputStream outputStream, String includes, String excludes, boolean useDefaultExcludes, String prefix, OpenOption... openOptions) throws IOException {
+        String correctPrefix = prefix == null || prefix.trim().isEmpty() ? "" : prefix.endsWith("/") ? prefix : prefix + "/";
+        Collection<String> files = new TreeSet<>(list(includes, excludes, useDefaultExcludes, openOptions));
+        ZipIndex index = index();
+        int count = 0;
+        try (ZipWriter writer = ZipWriter.download(new BufferedOutputStream(outputStream))) {
+            for (String relativePath : files) {
+                ZipIndex.Entry entry = index != null ? index.entry(path + relativePath) : null;
+                if (entry == null || entry.isDirectory()) {
+                    continue;
+                }
+                copy(writer, index, entry, correctPrefix + relativePath);
+                count++;
+            }
+            writer.finish();
+        }
+        return count;
+    }
+
+    /**
+     * Writes an entry of an archive to a download, copying its compressed data where possible.
+     */
+    static void copy(ZipWriter writer, ZipIndex index, ZipIndex.Entry entry, String name) throws IOException {
+        if (entry.blob) {
+            ZipIndex blob = BlobStore.index(entry.hash);
+            ZipIndex.Entry data = BlobStore.entry(blob, entry.hash);
+            try (InputStream raw = blob.openRaw(data)) {
+                writer.copyEntry(name, entry, data, raw);
+            }
+        } else if (entry.method == ZipIndex.DEFLATED_WITH_DICTIONARY || entry.isSolid()) {
+            // Without the dictionary, which the download does not come with, or on its own rather than as part of a block
+            try (InputStream in = index.open(entry)) {
+                writer.recompressEntry(name, entry, in);
+            }
+        } else {
+            try (InputStream raw = index.openRaw(entry)) {
+                writer.copyEntry(name, entry, entry, raw);
+            }
+        }
     }
 
     private static final class EntryInputStream extends FilterInputStream {
 
-        private static final Logger LOGGER = Logger.getLogger(EntryInputStream.class.getName());
+        private final OpenStreams.Handle handle;
 
-        private final @Nonnull ZipFile archive;
-        private Exception acquired = new Exception("Opened by:");
+        private EntryInputStream(File archive, String path, @Nonnull InputStream in) {
+            super(in);
+            handle = OpenStreams.register(this, archive, path, in);
+        }
 
-        private EntryInputStream(ZipFile archive, ZipEntry entry) throws IOException {
-            super(archive.getInputStream(entry));
-            this.archive = archive;
+        /**
+         * Lets stored entries be copied from the archive without going through an {@code Inflater}, see {@code ZipIndex.RegionInputStream}.
+         */
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            return in.transferTo(out);
         }
 
         @Override
         public void close() throws IOException {
-            super.close();
-            archive.close();
-            synchronized (this) {
-                acquired = null;
+            try {
+                super.close();
+            } finally {
+                handle.close();
             }
         }
+    }
 
-        @Override
-        protected void finalize() throws Throwable {
-            synchronized (this) {
-                if (acquired != null) {
-                    try {
-                        LOGGER.log(Level.WARNING, "InputStream created by ZipStorage#open() not closed properly", acquired);
-                        acquired = null;
-                        close();
-                    } catch (Throwable ex) {
-                        LOGGER.log(Level.WARNING, "Failed to finalize", ex);
-                    }
+    /**
+     * Writes to a file from a given position through a large direct buffer, rather than in as many small writes as the agent sends.
+     * Closing flushes but leaves the file open.
+     */
+    private static final class ChannelOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        /** Where the buffer goes in the file. */
+        private long position;
+
+        ChannelOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * Position in the file of the next byte written.
+         */
+        synchronized long position() {
+            return position + buffer.position();
+        }
+
+        /**
+         * Flushes, then moves on to writing elsewhere in the file.
+         */
+        synchronized ChannelOutputStream at(long position) throws IOException {
+            flush();
+            this.position = position;
+            return this;
+        }
+
+        @Override public synchronized void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
                 }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
             }
         }
+
+        @Override public synchronized void flush() throws IOException {
+            buffer.flip();
+            WriteThrottle.consume(buffer.remaining());
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+
+        @Override public void close() throws IOException {
+            flush();
+        }
     }
+
 }
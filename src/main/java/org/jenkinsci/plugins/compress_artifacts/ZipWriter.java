@@ -0,0 +1,664 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import static org.jenkinsci.plugins.compress_artifacts.ZipIndex.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Writes ZIP structures to a stream, keeping track of the offset reached in the archive.
+ * Works on a plain stream, so entries whose compressed size is not known upfront are followed by a data descriptor.
+ */
+final class ZipWriter implements Closeable {
+
+    private static final int VERSION_ZIP64 = 45;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int HOST_UNIX = 3;
+    private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+    private static final int UTF8_FLAG = 1 << 11;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFREG = 0100000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Name prefix of solid blocks, followed by a random UUID so that blocks appended later never clash. */
+    private static final String SOLID_PREFIX = ".solid/";
+    /** Uncompressed length between seek points of deflated entries, bounding how much a skip has to inflate. */
+    static final int SEEK_INTERVAL = 4 * 1024 * 1024;
+    /** As many seek points as fit in an extra field. */
+    private static final int MAX_SEEK_POINTS = 8000;
+
+    private final OutputStream out;
+    /** Whether this is a download, leaving out fields only meaningful in the archive the entries come from. */
+    private final boolean download;
+    private long position;
+    private final List<Entry> entries = new ArrayList<>();
+    /** Deflated entry being written, if any. */
+    private Entry current;
+    private boolean currentZip64;
+    private long currentData;
+    private long[] currentSeekPoints = new long[16];
+    private int currentSeekCount;
+
+    /**
+     * @param position offset in the archive at which the stream starts
+     */
+    ZipWriter(OutputStream out, long position) {
+        this(out, position, false);
+    }
+
+    private ZipWriter(OutputStream out, long position, boolean download) {
+        this.out = out;
+        this.position = position;
+        this.download = download;
+    }
+
+    /**
+     * Writes a ZIP file for users, whose entries copied from archives get no seek points, hashes nor solid blocks.
+     */
+    static ZipWriter download(OutputStream out) {
+        return new ZipWriter(out, 0, true);
+    }
+
+    long position() {
+        return position;
+    }
+
+    /**
+     * Entries added so far.
+     */
+    List<Entry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        position += len;
+    }
+
+    /**
+     * Adds an entry for a directory.
+     */
+    void putDirectory(String name, long time) throws IOException {
+        long offset = position;
+        long dosTime = javaToDosTime(time);
+        writeLocalHeader(name + '/', UTF8_FLAG, STORED, dosTime, time, 0, 0, 0, false);
+        entries.add(new Entry(name + '/', VERSION_DEFAULT, UTF8_FLAG, STORED, dosTime, 0, 0, 0, 0, time, offset));
+    }
+
+    /**
+     * Adds an entry with the content of a file.
+     * @param mode Unix permissions of the file, or -1 if unknown
+     * @param level Deflate level, {@link Deflater#NO_COMPRESSION} meaning the file is stored as is
+     * @param digest if not null, computes the hash of the content to be recorded in the archive
+     * @param dictionary if not null, preset dictionary to deflate the file with, see {@link DeflateDictionary}
+     */
+    void putFile(String name, File file, int mode, int level, @CheckForNull MessageDigest digest, @CheckForNull byte[] dictionary) throws IOException {
+        if (level != Deflater.NO_COMPRESSION) {
+            startEntry(name, file, mode, dictionary != null);
+            CRC32 crc = new CRC32();
+            long size;
+            try (InputStream in = new FileInputStream(file)) {
+                size = deflate(in, level, dictionary, crc, digest);
+            }
+            endEntry(file, crc.getValue(), size, digest != null ? digest.digest() : null);
+            return;
+        }
+        // Sizes and checksum have to be known upfront, unless using a data descriptor which not all readers support for stored entries
+        long offset = position;
+        long time = file.lastModified();
+        long dosTime = javaToDosTime(time);
+        long length = file.length();
+        long crc = crc(file);
+        writeLocalHeader(name, UTF8_FLAG, STORED, dosTime, time, crc, length, length, needsZip64(length));
+        CRC32 check = new CRC32();
+        long size = copy(file, check, digest);
+        if (size != length || check.getValue() != crc) {
+            throw new IOException(file + " was modified while being archived");
+        }
+        entries.add(new Entry(name, versionMadeBy(mode), UTF8_FLAG, STORED, dosTime, crc, size, size, externalAttributes(mode), time, offset,
+                0, null, digest != null ? digest.digest() : null, false));
+    }
+
+    /**
+     * Adds an empty entry standing for a file whose content is in {@link BlobStore}.
+     * @param hash SHA-256 of the content of the file
+     */
+    void putReference(String name, File file, int mode, byte[] hash) throws IOException {
+        long time = file.lastModified();
+        putReference(new Entry(name, versionMadeBy(mode), UTF8_FLAG, STORED, javaToDosTime(time), 0, 0, file.length(), externalAttributes(mode), time, 0, 0, null, hash, true));
+    }
+
+    /**
+     * Adds an empty entry standing for the content of another entry, to be found in {@link BlobStore}.
+     */
+    void putReference(Entry entry) throws IOException {
+        long offset = position;
+        writeLocalHeader(entry.name, UTF8_FLAG, STORED, entry.dosTime, entry.time, 0, 0, 0, false);
+        entries.add(new Entry(entry.name, entry.versionMadeBy, UTF8_FLAG, STORED, entry.dosTime, 0, 0, entry.size, entry.externalAttributes, entry.time, offset, 0, null, entry.hash, true));
+    }
+
+    /**
+     * Starts a deflated entry for a file, whose compressed data is then passed to {@link #write}.
+     * Must be followed by {@link #endEntry}.
+     * @param dictionary whether the data is deflated with the preset dictionary of the archive
+     */
+    void startEntry(String name, File file, int mode, boolean dictionary) throws IOException {
+        startEntry(name, file.length(), file.lastModified(), versionMadeBy(mode), externalAttributes(mode), dictionary ? DEFLATED_WITH_DICTIONARY : DEFLATED);
+    }
+
+    private void startEntry(String name, long length, long time, int versionMadeBy, int externalAttributes, int method) throws IOException {
+        if (current != null) {
+            throw new IllegalStateException(current.name + " was not ended");
+        }
+        boolean zip64 = needsZip64(length);
+        long offset = position;
+        long dosTime = javaToDosTime(time);
+        writeLocalHeader(name, UTF8_FLAG | DATA_DESCRIPTOR_FLAG, method, dosTime, time, 0, 0, 0, zip64);
+        current = new Entry(name, versionMadeBy, UTF8_FLAG | DATA_DESCRIPTOR_FLAG, method, dosTime, 0, 0, 0, externalAttributes, time, offset);
+        currentZip64 = zip64;
+        currentData = position;
+        currentSeekCount = 0;
+    }
+
+    /**
+     * Records that the compressed data written next can be inflated on its own,
+     * and starts the next {@link #SEEK_INTERVAL} of uncompressed data of the current entry.
+     */
+    void seekPoint() {
+        if (currentSeekCount == MAX_SEEK_POINTS) {
+            return;
+        }
+        if (currentSeekCount == currentSeekPoints.length) {
+            currentSeekPoints = Arrays.copyOf(currentSeekPoints, currentSeekCount * 2);
+        }
+        currentSeekPoints[currentSeekCount++] = position - currentData;
+    }
+
+    /**
+     * Ends the entry started by {@link #startEntry}.
+     * @param source what the data comes from, for error messages
+     * @param crc checksum of the uncompressed data
+     * @param size size of the uncompressed data
+     * @param hash SHA-256 of the uncompressed data, if computed
+     */
+    void endEntry(Object source, long crc, long size, @CheckForNull byte[] hash) throws IOException {
+        long compressedSize = position - currentData;
+        if (!currentZip64 && (size >= MAGIC32 || compressedSize >= MAGIC32)) {
+            throw new IOException(source + " was modified while being archived");
+        }
+        writeDataDescriptor(crc, compressedSize, size, currentZip64);
+        long[] seekPoints = currentSeekCount > 0 ? Arrays.copyOf(currentSeekPoints, currentSeekCount) : null;
+        entries.add(new Entry(current.name, current.versionMadeBy, current.flags, current.method, current.dosTime, crc, compressedSize, size, current.externalAttributes, current.time, current.localHeaderOffset,
+                seekPoints != null ? SEEK_INTERVAL : 0, seekPoints, hash, false));
+        current = null;
+    }
+
+    /**
+     * Small files to be written together by {@link #putBlock}, each compressing along with the others.
+     */
+    static final class SolidBlock {
+        private final Buffer data = new Buffer();
+        private final List<Entry> members = new ArrayList<>();
+
+        /**
+         * Adds the content of a file.
+         * @param mode Unix permissions of the file, or -1 if unknown
+         */
+        void add(String name, File file, int mode) throws IOException {
+            long time = file.lastModified();
+            byte[] content = Files.readAllBytes(file.toPath());
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            members.add(new Entry(name, versionMadeBy(mode), UTF8_FLAG, SOLID, javaToDosTime(time), crc.getValue(), 0, content.length, externalAttributes(mode), time, 0,
+                    0, null, null, false, false, data.size()));
+            data.write(content, 0, content.length);
+        }
+
+        boolean isEmpty() {
+            return members.isEmpty();
+        }
+
+        /** Uncompressed length of the block. */
+        int size() {
+            return data.size();
+        }
+
+        /**
+         * Compresses the block, which can be done ahead of {@link #putBlock} on another thread.
+         * @param dictionary if not null, preset dictionary to deflate the block with, see {@link DeflateDictionary}
+         */
+        byte[] deflate(int level, @CheckForNull byte[] dictionary) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(data.buffer(), 0, data.size());
+                deflater.finish();
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.size() / 2 + 64);
+                byte[] output = new byte[BUFFER_SIZE];
+                while (!deflater.finished()) {
+                    compressed.write(output, 0, deflater.deflate(output));
+                }
+                return compressed.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Adds a hidden entry holding a solid block, followed by entries for the files it holds, which have no local header of their own.
+     * @param compressed the block as returned by {@link SolidBlock#deflate}
+     * @param dictionary whether it was deflated with the preset dictionary of the archive
+     */
+    void putBlock(SolidBlock block, byte[] compressed, boolean dictionary) throws IOException {
+        long offset = position;
+        String name = SOLID_PREFIX + UUID.randomUUID();
+        int method = dictionary ? DEFLATED_WITH_DICTIONARY : DEFLATED;
+        long time = System.currentTimeMillis();
+        long dosTime = javaToDosTime(time);
+        CRC32 crc = new CRC32();
+        crc.update(block.data.buffer(), 0, block.size());
+        writeLocalHeader(name, UTF8_FLAG, method, dosTime, time, crc.getValue(), compressed.length, block.size(), false);
+        write(compressed, 0, compressed.length);
+        entries.add(new Entry(name, VERSION_DEFAULT, UTF8_FLAG, method, dosTime, crc.getValue(), compressed.length, block.size(), 0, time, offset,
+                0, null, null, false, true, -1));
+        for (Entry member : block.members) {
+            entries.add(member.at(offset));
+        }
+    }
+
+    /**
+     * Adds an entry of another archive whose content is part of a solid block, the block having been copied first.
+     * @param blockOffset where the block was copied to
+     */
+    void putSolid(Entry entry, long blockOffset) {
+        entries.add(entry.at(blockOffset));
+    }
+
+    /**
+     * Adds an entry of another archive, copying its data as is.
+     * @param entry the entry, for its name, time and attributes
+     * @param data the entry with its data, usually the same unless found in {@link BlobStore}
+     * @param raw the data, compressed or not
+     */
+    void copyEntry(String name, Entry entry, Entry data, InputStream raw) throws IOException {
+        long offset = position;
+        // Sizes are known, no need for a data descriptor
+        int flags = (data.flags & ~DATA_DESCRIPTOR_FLAG) | UTF8_FLAG;
+        writeLocalHeader(name, flags, data.method, entry.dosTime, entry.time, data.crc, data.compressedSize, data.size, needsZip64(Math.max(data.size, data.compressedSize)));
+        long copied = raw.transferTo(out);
+        position += copied;
+        if (copied != data.compressedSize) {
+            throw new IOException("Copied " + copied + " bytes of " + entry + " instead of " + data.compressedSize);
+        }
+        if (download) {
+            entries.add(new Entry(name, entry.versionMadeBy, flags, data.method, entry.dosTime, data.crc, data.compressedSize, data.size, entry.externalAttributes, entry.time, offset,
+                    0, null, null, false));
+        } else {
+            entries.add(new Entry(name, entry.versionMadeBy, flags, data.method, entry.dosTime, data.crc, data.compressedSize, data.size, entry.externalAttributes, entry.time, offset,
+                    data.seekInterval, data.seekPoints, data.hash, false, data.block, -1));
+        }
+    }
+
+    /**
+     * Adds an entry of another archive whose data cannot be copied as is, deflating its content again.
+     * @param entry the entry, for its name, time and attributes
+     * @param in the content
+     */
+    void recompressEntry(String name, Entry entry, InputStream in) throws IOException {
+        startEntry(name, entry.size, entry.time, entry.versionMadeBy, entry.externalAttributes, DEFLATED);
+        CRC32 crc = new CRC32();
+        long size = deflate(in, Deflater.DEFAULT_COMPRESSION, null, crc, null);
+        endEntry(entry, crc.getValue(), size, download ? null : entry.hash);
+    }
+
+    /**
+     * Whether headers of a file that large need ZIP64 fields, leaving room for Deflate to slightly expand incompressible data.
+     */
+    private static boolean needsZip64(long length) {
+        return length >= MAGIC32 - (1 << 20);
+    }
+
+    private static int versionMadeBy(int mode) {
+        return mode == -1 ? VERSION_DEFAULT : HOST_UNIX << 8 | VERSION_DEFAULT;
+    }
+
+    private static int externalAttributes(int mode) {
+        if (mode == -1) {
+            return 0;
+        }
+        if ((mode & S_IFMT) == 0) {
+            mode |= S_IFREG; // only permissions were known
+        }
+        return mode << 16;
+    }
+
+    private void writeLocalHeader(String path, int flags, int method, long dosTime, long time, long crc, long compressedSize, long size, boolean zip64) throws IOException {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        Buffer extra = new Buffer();
+        if (zip64) {
+            extra.writeShort(ZIP64_EXTRA);
+            extra.writeShort(16);
+            extra.writeLong(size);
+            extra.writeLong(compressedSize);
+        }
+        writeTimestamp(extra, time);
+
+        Buffer b = new Buffer();
+        b.writeInt(LOC_SIG);
+        b.writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        b.writeShort(flags);
+        b.writeShort(method);
+        b.writeInt(dosTime);
+        b.writeInt(crc);
+        b.writeInt(zip64 ? MAGIC32 : compressedSize);
+        b.writeInt(zip64 ? MAGIC32 : size);
+        b.writeShort(name.length);
+        b.writeShort(extra.size());
+        b.write(name, 0, name.length);
+        extra.writeTo(b);
+        flush(b);
+    }
+
+    private void writeDataDescriptor(long crc, long compressedSize, long size, boolean zip64) throws IOException {
+        Buffer b = new Buffer();
+        b.writeInt(DATA_DESCRIPTOR_SIG);
+        b.writeInt(crc);
+        if (zip64) {
+            b.writeLong(compressedSize);
+            b.writeLong(size);
+        } else {
+            b.writeInt(compressedSize);
+            b.writeInt(size);
+        }
+        flush(b);
+    }
+
+    private static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private long copy(File file, CRC32 crc, @CheckForNull MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                write(buffer, 0, read);
+                size += read;
+            }
+        }
+        return size;
+    }
+
+    private long deflate(InputStream in, int level, @CheckForNull byte[] dictionary, CRC32 crc, @CheckForNull MessageDigest digest) throws IOException {
+        Deflater deflater = new Deflater(level, true);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        byte[] input = new byte[BUFFER_SIZE];
+        byte[] output = new byte[BUFFER_SIZE];
+        long size = 0;
+        try {
+            int read;
+            while ((read = in.read(input, 0, (int) Math.min(input.length, SEEK_INTERVAL - size % SEEK_INTERVAL))) != -1) {
+                if (size > 0 && size % SEEK_INTERVAL == 0) {
+                    // Empty the window so that what follows can be inflated on its own
+                    int length;
+                    do {
+                        length = deflater.deflate(output, 0, output.length, Deflater.FULL_FLUSH);
+                        write(output, 0, length);
+                    } while (length == output.length);
+                    seekPoint();
+                }
+                crc.update(input, 0, read);
+                if (digest != null) {
+                    digest.update(input, 0, read);
+                }
+                size += read;
+                deflater.setInput(input, 0, read);
+                while (!deflater.needsInput()) {
+                    write(output, 0, deflater.deflate(output));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                write(output, 0, deflater.deflate(output));
+            }
+        } finally {
+            deflater.end();
+        }
+        return size;
+    }
+
+    static long javaToDosTime(long time) {
+        LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (d.getYear() < 1980) {
+            return (1 << 21) | (1 << 16); // 1980-01-01, the earliest time representable
+        }
+        return (long) (d.getYear() - 1980) << 25 | d.getMonthValue() << 21 | d.getDayOfMonth() << 16
+                | d.getHour() << 11 | d.getMinute() << 5 | d.getSecond() >> 1;
+    }
+
+    private static void writeTimestamp(Buffer extra, long time) {
+        extra.writeShort(TIMESTAMP_EXTRA);
+        extra.writeShort(5);
+        extra.write(1); // modification time only
+        extra.writeInt(TimeUnit.MILLISECONDS.toSeconds(time));
+    }
+
+    /**
+     * Writes the central directory listing the entries added so far.
+     */
+    void finish() throws IOException {
+        finish(entries);
+    }
+
+    /**
+     * Writes the central directory listing the given entries, followed by the end of central directory records.
+     */
+    void finish(Collection<Entry> entries) throws IOException {
+        long offset = position;
+        for (Entry entry : entries) {
+            writeCentralDirectoryEntry(entry);
+        }
+        long length = position - offset;
+
+        boolean zip64 = entries.size() >= MAGIC16 || offset >= MAGIC32 || length >= MAGIC32;
+        if (zip64) {
+            long zip64Offset = position;
+            Buffer b = new Buffer();
+            b.writeInt(ZIP64_EOCD_SIG);
+            b.writeLong(ZIP64_EOCD_LENGTH - 12); // size of the rest of the record
+            b.writeShort(VERSION_ZIP64);
+            b.writeShort(VERSION_ZIP64);
+            b.writeInt(0); // this disk
+            b.writeInt(0); // disk with central directory
+            b.writeLong(entries.size()); // on this disk
+            b.writeLong(entries.size());
+            b.writeLong(length);
+            b.writeLong(offset);
+            b.writeInt(ZIP64_LOCATOR_SIG);
+            b.writeInt(0); // disk with ZIP64 end of central directory
+            b.writeLong(zip64Offset);
+            b.writeInt(1); // total disks
+            flush(b);
+        }
+
+        Buffer b = new Buffer();
+        b.writeInt(EOCD_SIG);
+        b.writeShort(0); // this disk
+        b.writeShort(0); // disk with central directory
+        b.writeShort((int) Math.min(entries.size(), MAGIC16)); // on this disk
+        b.writeShort((int) Math.min(entries.size(), MAGIC16));
+        b.writeInt(Math.min(length, MAGIC32));
+        b.writeInt(Math.min(offset, MAGIC32));
+        b.writeShort(0); // comment length
+        flush(b);
+        out.flush();
+    }
+
+    private void writeCentralDirectoryEntry(Entry entry) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        long size = entry.blob ? 0 : entry.size; // the entry itself is empty
+        boolean zip64Size = size >= MAGIC32 || entry.compressedSize >= MAGIC32;
+        boolean zip64Offset = entry.localHeaderOffset >= MAGIC32;
+
+        Buffer extra = new Buffer();
+        if (zip64Size || zip64Offset) {
+            extra.writeShort(ZIP64_EXTRA);
+            extra.writeShort((zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0));
+            if (zip64Size) {
+                extra.writeLong(size);
+                extra.writeLong(entry.compressedSize);
+            }
+            if (zip64Offset) {
+                extra.writeLong(entry.localHeaderOffset);
+            }
+        }
+        writeTimestamp(extra, entry.time);
+        if (entry.seekPoints != null) {
+            extra.writeShort(SEEK_EXTRA);
+            extra.writeShort(4 + 8 * entry.seekPoints.length);
+            extra.writeInt(entry.seekInterval);
+            for (long point : entry.seekPoints) {
+                extra.writeLong(point);
+            }
+        }
+        if (entry.hash != null) {
+            extra.writeShort(HASH_EXTRA);
+            extra.writeShort(entry.blob ? 41 : 33);
+            extra.write(entry.blob ? HASH_BLOB : HASH_INLINE);
+            extra.write(entry.hash, 0, entry.hash.length);
+            if (entry.blob) {
+                extra.writeLong(entry.size);
+            }
+        }
+        if (entry.block) {
+            extra.writeShort(SOLID_EXTRA);
+            extra.writeShort(1);
+            extra.write(SOLID_BLOCK);
+        } else if (entry.isSolid()) {
+            extra.writeShort(SOLID_EXTRA);
+            extra.writeShort(9);
+            extra.write(SOLID_MEMBER);
+            extra.writeLong(entry.blockPosition);
+        }
+
+        Buffer b = new Buffer();
+        b.writeInt(CEN_SIG);
+        b.writeShort(entry.versionMadeBy);
+        b.writeShort(zip64Size || zip64Offset ? VERSION_ZIP64 : VERSION_DEFAULT);
+        b.writeShort(entry.flags);
+        b.writeShort(entry.method);
+        b.writeInt(entry.dosTime);
+        b.writeInt(entry.crc);
+        b.writeInt(zip64Size ? MAGIC32 : entry.compressedSize);
+        b.writeInt(zip64Size ? MAGIC32 : size);
+        b.writeShort(name.length);
+        b.writeShort(extra.size());
+        b.writeShort(0); // comment length
+        b.writeShort(0); // disk
+        b.writeShort(0); // internal attributes
+        b.writeInt(entry.externalAttributes);
+        b.writeInt(zip64Offset ? MAGIC32 : entry.localHeaderOffset);
+        b.write(name, 0, name.length);
+        extra.writeTo(b);
+        flush(b);
+    }
+
+    private void flush(Buffer b) throws IOException {
+        b.writeTo(out);
+        position += b.size();
+    }
+
+    @Override public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Little-endian output buffer.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        /** The internal array, valid up to {@link #size}. */
+        byte[] buffer() {
+            return buf;
+        }
+
+        void writeShort(int v) {
+            write(v & 0xFF);
+            write((v >>> 8) & 0xFF);
+        }
+
+        void writeInt(long v) {
+            writeShort((int) (v & MAGIC16));
+            writeShort((int) ((v >>> 16) & MAGIC16));
+        }
+
+        void writeLong(long v) {
+            writeInt(v & MAGIC32);
+            writeInt(v >>> 32);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Archiving a workspace on the controller, reported as archives per second along with bytes of artifacts archived per second.
+ * Large files default to 256 MiB, more can be tried with for instance {@code -Djmh.param.largeSize=4096}.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ArchiveBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Workspace {
+
+        /** Either many small files, or a few large ones. */
+        @Param({"small", "large"})
+        public String files;
+
+        @Param({"true", "false"})
+        public boolean compressible;
+
+        /** Size of large files in MiB. */
+        @Param({"256"})
+        public int largeSize;
+
+        @Param({"DEFAULT", "FASTEST"})
+        public CompressingArtifactManagerFactory.Compression compression;
+
+        File workspace;
+        File build;
+        Map<String, String> artifacts = new LinkedHashMap<>();
+        long bytes;
+
+        @Setup(Level.Trial) public void write() throws Exception {
+            workspace = Files.createTempDirectory("workspace").toFile();
+            build = Files.createTempDirectory("build").toFile();
+            Random random = new Random(1);
+            int count = files.equals("small") ? 10000 : 2;
+            int size = files.equals("small") ? 4096 : largeSize * 1024 * 1024;
+            for (int i = 0; i < count; i++) {
+                String path = "dir" + i % 100 + "/file" + i;
+                File file = new File(workspace, path);
+                file.getParentFile().mkdirs();
+                try (OutputStream out = Files.newOutputStream(file.toPath())) {
+                    byte[] buffer = new byte[Math.min(size, 1024 * 1024)];
+                    for (int written = 0; written < size; written += buffer.length) {
+                        fill(buffer, random);
+                        out.write(buffer, 0, Math.min(buffer.length, size - written));
+                    }
+                }
+                artifacts.put(path, path);
+                bytes += size;
+            }
+        }
+
+        private void fill(byte[] buffer, Random random) {
+            if (!compressible) {
+                random.nextBytes(buffer);
+                return;
+            }
+            // Log-like text
+            int i = 0;
+            while (i < buffer.length) {
+                byte[] line = ("[INFO] step " + random.nextInt(1000) + " took " + random.nextInt(100) + "ms\n").getBytes(StandardCharsets.US_ASCII);
+                int length = Math.min(line.length, buffer.length - i);
+                System.arraycopy(line, 0, buffer, i, length);
+                i += length;
+            }
+        }
+
+        @TearDown(Level.Invocation) public void delete() throws Exception {
+            ZipStorage.delete(new File(build, "archive.zip"));
+        }
+
+        @TearDown(Level.Trial) public void deleteWorkspace() throws Exception {
+            FileUtils.deleteDirectory(workspace);
+            FileUtils.deleteDirectory(build);
+        }
+    }
+
+    /** Reported per second, like archives. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long bytes;
+
+        @Setup(Level.Iteration) public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark public void archive(Workspace workspace, Throughput throughput) throws Exception {
+        BuildListener listener = new StreamBuildListener(OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+        ArchiveOptions options = ArchiveOptions.DEFAULT.withCompression(workspace.compression).withStoredExtensions("");
+        ZipStorage.archive(new File(workspace.build, "archive.zip"), null, new FilePath(workspace.workspace), new Launcher.LocalLauncher(listener), listener, workspace.artifacts, options);
+        throughput.bytes += workspace.bytes;
+    }
+
+}
@@ -43,6 +43,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.List;
 
 import jenkins.model.ArtifactManagerFactory;
@@ -107,6 +108,31 @@ public class CompressArtifactsTest {
         assertEquals(7, artifact.getFileSize());
     }
 
+    @Test
+    public void archiveInMultipleRounds() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                FilePath ws = build.getWorkspace();
+                for (String name : new String[] {"first.txt", "second.txt"}) {
+                    ws.child(name).write(name, "UTF-8");
+                    build.pickArtifactManager().archive(ws, launcher, listener, Collections.singletonMap(name, name));
+                }
+                return true;
+            }
+        });
+        FreeStyleBuild build = j.buildAndAssertSuccess(p);
+
+        List<Run<FreeStyleProject, FreeStyleBuild>.Artifact> artifacts = build.getArtifacts();
+        assertEquals("number of artifacts archived", 2, artifacts.size());
+        InputStream first = build.getArtifactManager().root().child("first.txt").open();
+        try {
+            assertEquals("first.txt", IOUtils.toString(first));
+        } finally {
+            first.close();
+        }
+    }
+
     @Test
     public void archiveThousandsFiles() throws Exception {
         FreeStyleProject p = j.createFreeStyleProject();
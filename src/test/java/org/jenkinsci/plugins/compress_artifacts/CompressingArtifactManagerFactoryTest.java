@@ -23,13 +23,41 @@
  */
 package org.jenkinsci.plugins.compress_artifacts;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.ExtensionList;
 import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.tasks.ArtifactArchiver;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import jenkins.model.ArtifactManager;
+import jenkins.model.ArtifactManagerConfiguration;
+import jenkins.model.ArtifactManagerFactory;
+import jenkins.model.ArtifactManagerFactoryDescriptor;
+import jenkins.model.StandardArtifactManager;
+import org.apache.commons.io.IOUtils;
 import org.jenkinsci.plugins.workflow.ArtifactManagerTest;
 import org.jenkinsci.test.acceptance.docker.DockerImage;
+import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.Rule;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
 
 public class CompressingArtifactManagerFactoryTest {
 
@@ -38,14 +66,160 @@ public class CompressingArtifactManagerFactoryTest {
 
     private static DockerImage image;
 
+    private static final long PAUSE_MILLIS = ArtifactMigration.PAUSE_MILLIS;
+
     @BeforeClass
     public static void doPrepareImage() throws Exception {
         image = ArtifactManagerTest.prepareImage();
     }
 
+    @After
+    public void restoreTunables() {
+        ArtifactMigration.PAUSE_MILLIS = PAUSE_MILLIS;
+    }
+
     @Test
     public void smokes() throws Exception {
         ArtifactManagerTest.artifactArchiveAndDelete(r, new CompressingArtifactManagerFactory(), !Functions.isWindows(), image);
     }
 
+    @Test
+    public void configRoundtrip() throws Exception {
+        CompressingArtifactManagerFactory factory = new CompressingArtifactManagerFactory();
+        factory.setCompression(CompressingArtifactManagerFactory.Compression.FASTEST);
+        factory.setStoredExtensions("jar zip");
+        factory.setSampleCompressibility(true);
+        factory.setThreads(4);
+        factory.setDeduplicate(true);
+        factory.setReuseUnchanged(true);
+        factory.setDictionary(true);
+        factory.setSolid(true);
+        factory.setShards(8);
+        factory.setAsynchronous(true);
+        factory.setMigrate(true);
+        ArtifactManagerConfiguration.get().getArtifactManagerFactories().add(factory);
+        r.configRoundtrip();
+        factory = (CompressingArtifactManagerFactory) ArtifactManagerConfiguration.get().getArtifactManagerFactories().get(0);
+        assertEquals(CompressingArtifactManagerFactory.Compression.FASTEST, factory.getCompression());
+        assertEquals("jar zip", factory.getStoredExtensions());
+        assertTrue(factory.isSampleCompressibility());
+        assertEquals(4, factory.getThreads());
+        assertTrue(factory.isDeduplicate());
+        assertTrue(factory.isReuseUnchanged());
+        assertTrue(factory.isDictionary());
+        assertTrue(factory.isSolid());
+        assertEquals(8, factory.getShards());
+        assertTrue(factory.isAsynchronous());
+        assertTrue(factory.isMigrate());
+    }
+
+    @Test
+    public void migrateOlderBuilds() throws Exception {
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("dir/a.txt").write("hello ".repeat(1000), "UTF-8");
+                build.getWorkspace().child("b.txt").write("b", "UTF-8");
+                return true;
+            }
+        });
+        p.getPublishersList().add(new ArtifactArchiver("**/*.txt"));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+        File dir = new File(b.getRootDir(), "archive");
+        assertTrue(new File(dir, "dir/a.txt").isFile());
+
+        CompressingArtifactManagerFactory factory = new CompressingArtifactManagerFactory();
+        factory.setMigrate(true);
+        ArtifactManagerConfiguration.get().getArtifactManagerFactories().add(factory);
+        ArtifactMigration.PAUSE_MILLIS = 0;
+        ExtensionList.lookupSingleton(ArtifactMigration.class).execute(StreamTaskListener.fromStdout());
+        assertFalse(dir.exists());
+        assertTrue(b.getArtifactManager() instanceof CompressingArtifactManager);
+        assertEquals(2, b.getArtifacts().size());
+        try (InputStream in = b.getArtifactManager().root().child("dir/a.txt").open()) {
+            assertEquals("hello ".repeat(1000), IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+        assertEquals(0, ArtifactMigration.pending);
+    }
+
+    @Test
+    public void archiveInBackground() throws Exception {
+        CompressingArtifactManagerFactory factory = new CompressingArtifactManagerFactory();
+        factory.setAsynchronous(true);
+        ArtifactManagerConfiguration.get().getArtifactManagerFactories().add(factory);
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("dir/a.txt").write("hello", "UTF-8");
+                return true;
+            }
+        });
+        p.getPublishersList().add(new ArtifactArchiver("**/*.txt"));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+        // Nothing is read from the workspace once the build is done
+        b.getWorkspace().deleteRecursive();
+        ArchivingScheduler.await(new File(b.getRootDir(), "archive.zip"));
+        assertFalse(new File(b.getRootDir(), CompressingArtifactManager.STAGING).exists());
+        try (InputStream in = b.getArtifactManager().root().child("dir/a.txt").open()) {
+            assertEquals("hello", IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+        assertTrue(new File(b.getRootDir(), CompressingArtifactManager.LOG).isFile());
+
+        // As if Jenkins stopped before archiving what was staged
+        b.getWorkspace().child("b.txt").write("staged", "UTF-8");
+        File staged = new File(b.getRootDir(), CompressingArtifactManager.STAGING + "/0");
+        assertTrue(staged.mkdirs());
+        CompressingArtifactManager.stage(staged, new File(b.getRootDir(), "archive.zip"), null, b.getWorkspace(), new StreamBuildListener(System.out, StandardCharsets.UTF_8),
+                Collections.singletonMap("dir/b.txt", "b.txt"), ArchiveOptions.DEFAULT);
+        CompressingArtifactManagerFactory.resumeArchiving();
+        ArchivingScheduler.await(new File(b.getRootDir(), "archive.zip"));
+        assertFalse(new File(b.getRootDir(), CompressingArtifactManager.STAGING).exists());
+        try (InputStream in = b.getArtifactManager().root().child("dir/b.txt").open()) {
+            assertEquals("staged", IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void skipBuildsKeepingTheirArtifactManager() throws Exception {
+        ArtifactManagerConfiguration.get().getArtifactManagerFactories().add(new StandardFactory());
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.getBuildersList().add(new TestBuilder() {
+            @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                build.getWorkspace().child("a.txt").write("a", "UTF-8");
+                return true;
+            }
+        });
+        p.getPublishersList().add(new ArtifactArchiver("*.txt"));
+        FreeStyleBuild b = r.buildAndAssertSuccess(p);
+        File dir = new File(b.getRootDir(), "archive");
+        assertTrue(new File(dir, "a.txt").isFile());
+
+        CompressingArtifactManagerFactory factory = new CompressingArtifactManagerFactory();
+        factory.setMigrate(true);
+        ArtifactManagerConfiguration.get().getArtifactManagerFactories().add(0, factory);
+        ArtifactMigration.PAUSE_MILLIS = 0;
+        ArtifactMigration migration = ExtensionList.lookupSingleton(ArtifactMigration.class);
+        migration.execute(StreamTaskListener.fromStdout());
+        assertTrue(new File(dir, "a.txt").isFile());
+        assertFalse(new File(b.getRootDir(), "archive.zip").exists());
+        assertTrue(new File(b.getRootDir(), ArtifactMigration.SKIPPED).isFile());
+        // Not compressed again
+        long migrated = ArtifactMetrics.migratedBuilds.sum();
+        migration.execute(StreamTaskListener.fromStdout());
+        assertEquals(0, ArtifactMigration.pending);
+        assertFalse(new File(b.getRootDir(), "archive.zip").exists());
+        assertEquals(migrated, ArtifactMetrics.migratedBuilds.sum());
+    }
+
+    /**
+     * Gives builds a manager of their own storing artifacts as is.
+     */
+    public static final class StandardFactory extends ArtifactManagerFactory {
+        @Override public ArtifactManager managerFor(Run<?,?> build) {
+            return new StandardArtifactManager(build);
+        }
+
+        @TestExtension("skipBuildsKeepingTheirArtifactManager") public static final class DescriptorImpl extends ArtifactManagerFactoryDescriptor {}
+    }
+
 }
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2026 Jenkins project contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.compress_artifacts;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.util.VirtualFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Reading archives through {@link ZipStorage}: metadata lookups, listings, reading entries, and indexing an archive not seen yet.
+ */
+@JmhBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ZipStorageBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Archive {
+
+        /** Number of files. */
+        @Param({"1000", "100000"})
+        public int entries;
+
+        /** Whether files are all in one directory, or each digit of their number is a directory. */
+        @Param({"flat", "deep"})
+        public String layout;
+
+        File workspace;
+        File archive;
+        VirtualFile root;
+        String[] paths;
+        String[] directories;
+
+        @Setup(Level.Trial) public void archive() throws Exception {
+            workspace = Files.createTempDirectory("workspace").toFile();
+            archive = new File(Files.createTempDirectory("build").toFile(), "archive.zip");
+            paths = new String[entries];
+            Map<String, String> artifacts = new LinkedHashMap<>();
+            Random random = new Random(1);
+            for (int i = 0; i < entries; i++) {
+                String path = layout.equals("flat") ? "files/" + i + ".txt" : String.join("/", Integer.toString(i).split("")) + ".txt";
+                paths[i] = path;
+                File file = new File(workspace, path);
+                file.getParentFile().mkdirs();
+                Files.write(file.toPath(), ("result " + i + " " + random.nextLong() + "\n").getBytes(StandardCharsets.UTF_8));
+                artifacts.put(path, path);
+            }
+            BuildListener listener = new StreamBuildListener(OutputStream.nullOutputStream(), StandardCharsets.UTF_8);
+            ZipStorage.archive(archive, null, new FilePath(workspace), new Launcher.LocalLauncher(listener), listener, artifacts, ArchiveOptions.DEFAULT);
+            root = ZipStorage.root(archive);
+            directories = layout.equals("flat") ? new String[] {"", "files/"} : new String[] {"", "1/", "1/9/"};
+        }
+
+        @TearDown(Level.Trial) public void delete() throws Exception {
+            ZipStorage.delete(archive);
+            FileUtils.deleteDirectory(archive.getParentFile());
+            FileUtils.deleteDirectory(workspace);
+        }
+
+        String anyPath() {
+            return paths[ThreadLocalRandom.current().nextInt(paths.length)];
+        }
+    }
+
+    @Benchmark public boolean isFile(Archive archive) throws IOException {
+        return archive.root.child(archive.anyPath()).isFile();
+    }
+
+    @Benchmark public long length(Archive archive) throws IOException {
+        return archive.root.child(archive.anyPath()).length();
+    }
+
+    @Benchmark public boolean isMissing(Archive archive) throws IOException {
+        return archive.root.child(archive.anyPath() + ".missing").exists();
+    }
+
+    @Benchmark public VirtualFile[] list(Archive archive) throws IOException {
+        String dir = archive.directories[ThreadLocalRandom.current().nextInt(archive.directories.length)];
+        return archive.root.child(dir).list();
+    }
+
+    @Benchmark public byte[] read(Archive archive) throws IOException {
+        try (InputStream in = archive.root.child(archive.anyPath()).open()) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Benchmark @Threads(8) public byte[] readConcurrently(Archive archive) throws IOException {
+        return read(archive);
+    }
+
+    /** As after a restart, or once the index of the archive expired from memory. */
+    @Benchmark public ZipIndex index(Archive archive) throws IOException {
+        ZipIndex.invalidate(archive.archive);
+        return ZipIndex.of(archive.archive);
+    }
+
+}
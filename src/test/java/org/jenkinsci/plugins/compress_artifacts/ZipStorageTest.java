@@ -30,21 +30,40 @@ import hudson.Launcher;
 import hudson.model.BuildListener;
 import hudson.model.StreamBuildListener;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import jenkins.util.VirtualFile;
 
@@ -53,7 +72,9 @@ import org.apache.commons.io.IOUtils;
 
 import static org.junit.Assert.*;
 import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -67,6 +88,16 @@ public class ZipStorageTest {
     private VirtualFile zs;
     private VirtualFile canonical;
 
+    private static final boolean FSYNC = ZipStorage.FSYNC;
+    private static final int BATCH_FILES = ZipStorage.BATCH_FILES;
+    private static final long BATCH_SIZE = ZipStorage.BATCH_SIZE;
+    private static final int SCHEDULER_THREADS = ArchivingScheduler.THREADS;
+    private static final int SHARD_THREADS = ShardedStorage.THREADS;
+    private static final int MAX_WRITERS = WriteThrottle.MAX_WRITERS;
+    private static final long BYTES_PER_SECOND = WriteThrottle.BYTES_PER_SECOND;
+    private static final boolean INDEX_FILES = IndexFile.ENABLED;
+    private static final int SAMPLING = OpenStreams.SAMPLING;
+
     @Before public void samples() throws Exception {
         archive = new File(tmp.getRoot(), "archive.zip");
         zs = ZipStorage.root(archive);
@@ -74,6 +105,22 @@ public class ZipStorageTest {
         canonical = VirtualFile.forFile(content);
     }
 
+    /** Undoes whatever tunables a test changed. */
+    @After public void restoreTunables() {
+        ZipStorage.FSYNC = FSYNC;
+        ZipStorage.BATCH_FILES = BATCH_FILES;
+        ZipStorage.BATCH_SIZE = BATCH_SIZE;
+        ArchivingScheduler.THREADS = SCHEDULER_THREADS;
+        ShardedStorage.THREADS = SHARD_THREADS;
+        WriteThrottle.MAX_WRITERS = MAX_WRITERS;
+        WriteThrottle.BYTES_PER_SECOND = BYTES_PER_SECOND;
+        WriteThrottle.clock = WriteThrottle.Clock.SYSTEM;
+        WriteThrottle.reset();
+        IndexFile.ENABLED = INDEX_FILES;
+        OpenStreams.SAMPLING = SAMPLING;
+        System.clearProperty(BlobStore.class.getName() + ".root");
+    }
+
     @Test public void basics() throws Exception {
         FileUtils.writeStringToFile(new File(content, "top"), "top");
         File dirF = new File(content, "dir");
@@ -298,6 +345,234 @@ public class ZipStorageTest {
         assertArrayEquals(new VirtualFile[0], zs.list("*"));
     }
 
+    @Test
+    public void publishBatchesWhileWriting() throws Exception {
+        FileUtils.writeStringToFile(new File(content, "file"), "content");
+        final Map<String, String> artifacts = new LinkedHashMap<String, String>() {
+            @Override
+            public Set<Map.Entry<String, String>> entrySet() {
+                return new LinkedHashSet<Map.Entry<String, String>>(Collections.singletonMap("file", "file").entrySet()) {
+                    @Override
+                    public Iterator<Map.Entry<String, String>> iterator() {
+                        Iterator<Map.Entry<String, String>> it = super.iterator();
+                        return new Iterator<Map.Entry<String, String>>() {
+                            public boolean hasNext() {
+                                return true;
+                            }
+
+                            public Map.Entry<String, String> next() {
+                                if (it.hasNext()) {
+                                    return it.next();
+                                }
+                                synchronized (this) {
+                                    try {
+                                        this.wait(); // Block forever
+                                        throw new AssertionError();
+                                    } catch (InterruptedException ex) {
+                                        throw new IllegalStateException(ex);
+                                    }
+                                }
+                            }
+                        };
+                    }
+                };
+            }
+        };
+
+        ZipStorage.BATCH_FILES = 1;
+        Thread compressor = new Thread("compressing-thread") {
+            @Override
+            public void run() {
+                try {
+                    archive(artifacts);
+                } catch (Exception ex) {
+                    // interrupted
+                }
+            }
+        };
+        try {
+            compressor.start();
+            for (int i = 0; i < 100 && zs.list().length == 0; i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(compressor.isAlive());
+            assertArrayEquals(new String[] {"file"}, names(zs.list()));
+            assertEquals("content", read(zs.child("file")));
+        } finally {
+            compressor.interrupt();
+            compressor.join();
+        }
+        // Failed archiving leaves nothing behind
+        assertFalse(archive.exists());
+        assertFalse(zs.child("file").exists());
+    }
+
+    @Test
+    public void archiveInBatches() throws Exception {
+        ZipStorage.BATCH_FILES = 3;
+        ZipStorage.BATCH_SIZE = 1000;
+        ZipStorage.FSYNC = true;
+        Map<String, String> artifacts = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            FileUtils.writeStringToFile(new File(content, "file" + i), ("content " + i + "\n").repeat(100 * i));
+            artifacts.put("file" + i, "file" + i);
+        }
+        archive(artifacts);
+        long length = archive.length();
+        FileUtils.writeStringToFile(new File(content, "file3"), "modified");
+        archive(Collections.singletonMap("file3", "file3"));
+
+        assertTrue(archive.length() < length + 1000);
+        assertEquals(10, zs.list().length);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i == 3 ? "modified" : ("content " + i + "\n").repeat(100 * i), read(zs.child("file" + i)));
+        }
+        try (ZipFile zip = new ZipFile(archive)) {
+            assertEquals(10, zip.size());
+            try (InputStream in = zip.getInputStream(zip.getEntry("file9"))) {
+                assertEquals(("content 9\n").repeat(900), IOUtils.toString(in));
+            }
+        }
+    }
+
+    @Test
+    public void archiveInBackground() throws Exception {
+        FileUtils.writeStringToFile(new File(content, "file"), "content");
+        ArchivingScheduler.THREADS = 1;
+        List<String> done = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        File other = new File(tmp.getRoot(), "other.zip");
+        BuildListener l = new StreamBuildListener(System.out, Charset.defaultCharset());
+        ArchivingScheduler.submit("a", archive, "first", () -> {
+            blocked.await();
+            ZipStorage.archive(archive, null, new FilePath(content), new Launcher.LocalLauncher(l), l, Collections.singletonMap("file", "file"), ArchiveOptions.DEFAULT);
+            done.add("first");
+        });
+        ArchivingScheduler.submit("a", other, "second", () -> done.add("second"));
+        ArchivingScheduler.submit("a", other, "third", () -> done.add("third"));
+        ArchivingScheduler.submit("b", new File(tmp.getRoot(), "b.zip"), "fourth", () -> done.add("fourth"));
+        ArchivingScheduler.submit("b", new File(tmp.getRoot(), "cancelled.zip"), "cancelled", () -> done.add("cancelled"));
+        ArchivingScheduler.cancel(new File(tmp.getRoot(), "cancelled.zip"));
+        assertEquals(Collections.emptyList(), done);
+        blocked.countDown();
+        ArchivingScheduler.await(archive);
+        assertEquals("content", read(zs.child("file")));
+        ArchivingScheduler.await(other);
+        ArchivingScheduler.await(new File(tmp.getRoot(), "b.zip"));
+        // Agents take turns
+        assertEquals(Arrays.asList("first", "second", "fourth", "third"), done);
+    }
+
+    @Test
+    public void archiveStagedArtifacts() throws Exception {
+        String text = "unchanged line\n".repeat((int) BlobStore.MIN_SIZE / 10);
+        FileUtils.writeStringToFile(new File(content, "same.txt"), text);
+        FileUtils.writeStringToFile(new File(content, "src/b.txt"), "b");
+        new File(content, "empty").mkdirs();
+        Map<String, String> artifacts = new LinkedHashMap<>();
+        artifacts.put("same.txt", "same.txt");
+        artifacts.put("renamed/b.txt", "src/b.txt");
+        artifacts.put("empty", "empty");
+        ArchiveOptions options = ArchiveOptions.DEFAULT.withCompression(CompressingArtifactManagerFactory.Compression.STORE).withStoredExtensions("").withThreads(1).withReuseUnchanged(true);
+        File previous = new File(tmp.getRoot(), "previous.zip");
+        BuildListener l = new StreamBuildListener(System.out, Charset.defaultCharset());
+        ZipStorage.archive(previous, null, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts, options);
+
+        File staged = tmp.newFolder();
+        CompressingArtifactManager.stage(staged, archive, previous, new FilePath(content), l, artifacts, options);
+        File sharded = new File(tmp.getRoot(), "sharded.zip");
+        File stagedShards = tmp.newFolder();
+        CompressingArtifactManager.stage(stagedShards, sharded, null, new FilePath(content), l, artifacts, options.withShards(3));
+        assertFalse(archive.exists());
+        assertFalse(ShardedStorage.manifest(sharded).exists());
+        // Nothing is read from the workspace once staged
+        FileUtils.deleteDirectory(content);
+
+        CompressingArtifactManager.archiveStaged(archive, previous, staged, options, l);
+        assertEquals(text, read(zs.child("same.txt")));
+        assertEquals("b", read(zs.child("renamed/b.txt")));
+        assertTrue(zs.child("empty").isDirectory());
+        assertTrue(ZipIndex.of(archive).entry("same.txt").hash != null);
+        assertArrayEquals(new String[0], staged.list());
+
+        CompressingArtifactManager.archiveStaged(sharded, null, stagedShards, options.withShards(3), l);
+        assertEquals(3, ShardedStorage.shards(sharded));
+        VirtualFile root = CompressingArtifactManager.root(sharded);
+        assertEquals("b", read(root.child("renamed/b.txt")));
+        assertTrue(root.child("empty").isDirectory());
+        assertArrayEquals(new String[0], stagedShards.list());
+    }
+
+    @Test
+    public void throttleWrites() throws Exception {
+        int writers = WriteThrottle.writers(); // left by other tests
+        WriteThrottle.MAX_WRITERS = writers + 1;
+        WriteThrottle.acquire();
+        Thread writer = new Thread(() -> {
+            try {
+                archive(Collections.singletonMap("file", "file"));
+            } catch (Exception x) {
+                throw new AssertionError(x);
+            }
+        });
+        FileUtils.writeStringToFile(new File(content, "file"), "content");
+        writer.start();
+        for (int i = 0; i < 100 && WriteThrottle.queueLength() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, WriteThrottle.queueLength());
+        assertFalse(zs.child("file").exists());
+        WriteThrottle.release();
+        writer.join();
+        assertEquals(writers, WriteThrottle.writers());
+        assertEquals("content", read(zs.child("file")));
+    }
+
+    /**
+     * Time passing only when slept through.
+     */
+    private static final class FakeClock implements WriteThrottle.Clock {
+        long now;
+        long slept;
+
+        @Override public long nanoTime() {
+            return now;
+        }
+
+        @Override public void sleep(long nanos) {
+            now += nanos;
+            slept += nanos;
+        }
+    }
+
+    @Test
+    public void throttleWriteRate() throws Exception {
+        FakeClock clock = new FakeClock();
+        WriteThrottle.clock = clock;
+        WriteThrottle.BYTES_PER_SECOND = 1000;
+        WriteThrottle.reset();
+        WriteThrottle.consume(500);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), clock.slept);
+        // Idle time saves up no more than a second worth of bytes
+        clock.now += TimeUnit.SECONDS.toNanos(10);
+        WriteThrottle.consume(1000);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), clock.slept);
+        WriteThrottle.consume(2000);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2500), clock.slept);
+
+        WriteThrottle.BYTES_PER_SECOND = 1024 * 1024;
+        WriteThrottle.reset();
+        byte[] data = new byte[3 * 1024 * 1024];
+        new Random(3).nextBytes(data);
+        FileUtils.writeByteArrayToFile(new File(content, "big.bin"), data);
+        long slept = clock.slept;
+        archive(Collections.singletonMap("big.bin", "big.bin"));
+        assertTrue(clock.slept - slept >= TimeUnit.SECONDS.toNanos(3));
+        try (InputStream in = zs.child("big.bin").open()) {
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+        }
+    }
+
     @Test // This can happen when it was not yet (fully) written or it was deleted
     public void supporMissingArchiveFile() throws Exception {
         assertArrayEquals(new String[0], zs.list());
@@ -348,8 +623,950 @@ public class ZipStorageTest {
         assertTrue(subdir.child("úpěl_ďábelské_ódy").exists());
     }
 
+    @Test
+    public void indexIsCachedUntilArchiveChanges() throws Exception {
+        FileUtils.writeStringToFile(new File(content, "first"), "first");
+        archive(Collections.singletonMap("first", "first"));
+
+        ZipIndex index = ZipIndex.of(archive);
+        assertNotNull(index);
+        assertSame(index, ZipIndex.of(archive));
+        assertTrue(zs.child("first").isFile());
+
+        FileUtils.writeStringToFile(new File(content, "second"), "second");
+        archive(Collections.singletonMap("second", "second"));
+
+        assertNotSame(index, ZipIndex.of(archive));
+        assertEquals("second", read(zs.child("second")));
+
+        ZipStorage.delete(archive);
+        assertNull(ZipIndex.of(archive));
+        assertFalse(zs.child("second").exists());
+    }
+
+    @Test
+    public void listDeepTree() throws Exception {
+        Map<String,String> artifacts = new HashMap<String,String>();
+        for (String name : new String[] {"a/b/c/d/deep", "a/b/shallow", "a/b.txt", "a/b/c/other", "z"}) {
+            FileUtils.writeStringToFile(new File(content, name), name);
+            artifacts.put(name, name);
+        }
+        archive(artifacts);
+
+        assertArrayEquals(new String[] {"a", "z"}, names(zs.list()));
+        VirtualFile b = zs.child("a").child("b");
+        assertTrue(b.isDirectory());
+        assertArrayEquals(new String[] {"c", "shallow"}, names(b.list()));
+        assertArrayEquals(new String[] {"b", "b.txt"}, names(zs.child("a").list()));
+        assertTrue(zs.child("a/b/c/d").isDirectory());
+        assertEquals("a/b/c/d/deep", read(zs.child("a/b/c/d/deep")));
+        assertFalse(zs.child("a/b/c/d/deep").isDirectory());
+        assertFalse(zs.child("a/b/c/e").exists());
+    }
+
+    @Test
+    public void concurrentStreamsShareArchive() throws Exception {
+        Map<String,String> artifacts = new HashMap<String,String>();
+        for (String name : new String[] {"one", "two"}) {
+            FileUtils.writeStringToFile(new File(content, name), name);
+            artifacts.put(name, name);
+        }
+        archive(artifacts);
+
+        InputStream one = zs.child("one").open();
+        InputStream two = zs.child("two").open();
+        InputStream again = zs.child("one").open();
+        try {
+            assertEquals("two", IOUtils.toString(two));
+            assertEquals("one", IOUtils.toString(one));
+            assertEquals("one", IOUtils.toString(again));
+        } finally {
+            one.close();
+            two.close();
+            again.close();
+        }
+
+        // The shared handle must not prevent deletion once streams are closed, even on Windows
+        assertTrue(ZipStorage.delete(archive));
+        assertFalse(archive.exists());
+    }
+
+    @Test
+    public void derivedFilesFollowArchiveUpdates() throws Exception {
+        FileUtils.writeStringToFile(new File(content, "dir/old"), "old");
+        archive(Collections.singletonMap("dir/old", "dir/old"));
+
+        VirtualFile dir = zs.child("dir");
+        assertTrue(dir.child("old").isFile());
+        assertEquals(dir, dir.child("old").getParent());
+
+        FileUtils.writeStringToFile(new File(content, "dir/new"), "new");
+        archive(Collections.singletonMap("dir/new", "dir/new"));
+
+        assertEquals("new", read(dir.child("new")));
+        assertArrayEquals(new String[] {"new", "old"}, names(dir.list()));
+    }
+
+    @Test
+    public void archiveInMultipleRounds() throws Exception {
+        FileUtils.writeStringToFile(new File(content, "kept"), "kept");
+        FileUtils.writeStringToFile(new File(content, "dir/replaced"), "original");
+        Map<String,String> artifacts = new HashMap<String,String>();
+        artifacts.put("kept", "kept");
+        artifacts.put("dir/replaced", "dir/replaced");
+        archive(artifacts);
+        long firstRound = archive.length();
+
+        VirtualFile kept = zs.child("kept");
+        InputStream reading = kept.open();
+        try {
+            FileUtils.writeStringToFile(new File(content, "dir/replaced"), "updated");
+            FileUtils.writeStringToFile(new File(content, "dir/added"), "added");
+            artifacts.clear();
+            artifacts.put("dir/replaced", "dir/replaced");
+            artifacts.put("dir/added", "dir/added");
+            archive(artifacts);
+
+            // Appended rather than rewritten, so streams already open are not disturbed
+            assertEquals("kept", IOUtils.toString(reading));
+        } finally {
+            reading.close();
+        }
+        assertTrue(archive.length() > firstRound);
+
+        assertEquals("kept", read(zs.child("kept")));
+        assertEquals("updated", read(zs.child("dir/replaced")));
+        assertEquals("added", read(zs.child("dir/added")));
+        assertArrayEquals(new String[] {"added", "replaced"}, names(zs.child("dir").list()));
+        assertEquals(3, ZipIndex.of(archive).size());
+    }
+
+    @Test
+    public void compressionLevels() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append("line ").append(i % 100).append('\n');
+        }
+        FileUtils.writeStringToFile(new File(content, "dir/text"), text.toString());
+        Map<String, String> artifacts = new HashMap<>();
+        artifacts.put("dir", "dir");
+        artifacts.put("dir/text", "dir/text");
+
+        Map<CompressingArtifactManagerFactory.Compression, Long> sizes = new HashMap<>();
+        for (CompressingArtifactManagerFactory.Compression compression : CompressingArtifactManagerFactory.Compression.values()) {
+            ZipStorage.delete(archive);
+            archive(artifacts, ArchiveOptions.DEFAULT.withCompression(compression).withStoredExtensions(""));
+            ZipIndex.Entry entry = ZipIndex.of(archive).entry("dir/text");
+            assertEquals(compression == CompressingArtifactManagerFactory.Compression.STORE ? ZipIndex.STORED : ZipIndex.DEFLATED, entry.method);
+            assertEquals(text.length(), entry.size);
+            assertEquals(text.toString(), read(zs.child("dir/text")));
+            assertTrue(zs.child("dir").isDirectory());
+            sizes.put(compression, entry.compressedSize);
+        }
+        assertTrue(sizes.get(CompressingArtifactManagerFactory.Compression.FASTEST) < sizes.get(CompressingArtifactManagerFactory.Compression.STORE));
+        assertTrue(sizes.get(CompressingArtifactManagerFactory.Compression.BEST) <= sizes.get(CompressingArtifactManagerFactory.Compression.FASTEST));
+    }
+
+    @Test
+    public void storeAlreadyCompressed() throws Exception {
+        byte[] random = new byte[100000];
+        new Random(1).nextBytes(random);
+        FileUtils.writeStringToFile(new File(content, "lib.jar"), "compressible ".repeat(1000));
+        FileUtils.writeByteArrayToFile(new File(content, "dist.TAR.GZ"), random);
+        FileUtils.writeByteArrayToFile(new File(content, "random.bin"), random);
+        FileUtils.writeStringToFile(new File(content, "log.txt"), "compressible ".repeat(1000));
+        Map<String, String> artifacts = new HashMap<>();
+        for (String name : content.list()) {
+            artifacts.put(name, name);
+        }
+
+        archive(artifacts);
+        ZipIndex index = ZipIndex.of(archive);
+        assertEquals(ZipIndex.STORED, index.entry("lib.jar").method);
+        assertEquals(ZipIndex.STORED, index.entry("dist.TAR.GZ").method);
+        assertEquals(ZipIndex.DEFLATED, index.entry("random.bin").method);
+        assertEquals(ZipIndex.DEFLATED, index.entry("log.txt").method);
+
+        ZipStorage.delete(archive);
+        archive(artifacts, ArchiveOptions.DEFAULT.withStoredExtensions(".txt, .zip").withSampleCompressibility(true));
+        index = ZipIndex.of(archive);
+        assertEquals(ZipIndex.DEFLATED, index.entry("lib.jar").method);
+        assertEquals(ZipIndex.STORED, index.entry("random.bin").method);
+        assertEquals(ZipIndex.STORED, index.entry("log.txt").method);
+        try (InputStream in = zs.child("random.bin").open()) {
+            assertArrayEquals(random, IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void transferStoredEntries() throws Exception {
+        byte[] data = new byte[300000];
+        new Random(2).nextBytes(data);
+        FileUtils.writeByteArrayToFile(new File(content, "data.zip"), data);
+        FileUtils.writeStringToFile(new File(content, "text"), "text ".repeat(1000));
+        Map<String, String> artifacts = new HashMap<>();
+        artifacts.put("data.zip", "data.zip");
+        artifacts.put("text", "text");
+        archive(artifacts);
+        assertEquals(ZipIndex.STORED, ZipIndex.of(archive).entry("data.zip").method);
+
+        File copy = tmp.newFile();
+        try (InputStream in = zs.child("data.zip").open(); OutputStream out = new FileOutputStream(copy)) {
+            assertEquals(1000, in.skip(1000));
+            assertEquals(data.length - 1000, in.transferTo(out));
+            assertEquals(-1, in.read());
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, data.length), FileUtils.readFileToByteArray(copy));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = zs.child("data.zip").open()) {
+            in.transferTo(out);
+        }
+        assertArrayEquals(data, out.toByteArray());
+        out.reset();
+        try (InputStream in = zs.child("text").open()) {
+            in.transferTo(out);
+        }
+        assertEquals("text ".repeat(1000), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void zipCopiesCompressedData() throws Exception {
+        byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+        FileUtils.writeByteArrayToFile(new File(content, "dir/data.zip"), data);
+        FileUtils.writeStringToFile(new File(content, "dir/sub/text"), "text ".repeat(1000));
+        FileUtils.writeStringToFile(new File(content, "other"), "other");
+        Map<String, String> artifacts = new HashMap<>();
+        artifacts.put("dir/data.zip", "dir/data.zip");
+        artifacts.put("dir/sub/text", "dir/sub/text");
+        artifacts.put("other", "other");
+        archive(artifacts);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, zs.child("dir").zip(out, "**", null, true, "bundle"));
+
+        Map<String, byte[]> entries = new HashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                entries.put(entry.getName(), IOUtils.toByteArray(in));
+            }
+        }
+        assertEquals(new TreeSet<>(Arrays.asList("bundle/data.zip", "bundle/sub/text")), entries.keySet());
+        assertArrayEquals(data, entries.get("bundle/data.zip"));
+        assertEquals("text ".repeat(1000), new String(entries.get("bundle/sub/text"), "UTF-8"));
+    }
+
+    @Test
+    public void zipLeavesOutPrivateFields() throws Exception {
+        System.setProperty(BlobStore.class.getName() + ".root", tmp.newFolder().getPath());
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(5);
+        while (text.length() < 2 * ZipWriter.SEEK_INTERVAL) {
+            text.append(random.nextInt(100000)).append('\n');
+        }
+        FileUtils.writeStringToFile(new File(content, "big"), text.toString());
+        FileUtils.writeStringToFile(new File(content, "small"), "small");
+        Map<String, String> artifacts = new HashMap<>();
+        artifacts.put("big", "big");
+        artifacts.put("small", "small");
+        archive(artifacts, ArchiveOptions.DEFAULT.withDeduplicate(true).withSolid(true));
+        ZipIndex.Entry big = ZipIndex.of(archive).entry("big");
+        assertTrue(big.blob);
+
+        File download = tmp.newFile();
+        try (OutputStream out = new FileOutputStream(download)) {
+            assertEquals(2, zs.zip(out, "**", null, true, ""));
+        }
+        try (ZipFile zip = new ZipFile(download)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                byte[] extra = entry.getExtra();
+                for (int i = 0; extra != null && i + 4 <= extra.length; i += 4 + (extra[i + 2] & 0xFF | (extra[i + 3] & 0xFF) << 8)) {
+                    int id = extra[i] & 0xFF | (extra[i + 1] & 0xFF) << 8;
+                    assertTrue(entry.getName() + " has extra field " + Integer.toHexString(id), id == 0x5455 || id == 0x0001);
+                }
+            }
+            assertEquals(text.toString(), new String(IOUtils.toByteArray(zip.getInputStream(zip.getEntry("big"))), "UTF-8"));
+            assertEquals("small", new String(IOUtils.toByteArray(zip.getInputStream(zip.getEntry("small"))), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void skipThroughSeekPoints() throws Exception {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(4);
+        while (text.length() < 3 * ZipWriter.SEEK_INTERVAL + 12345) {
+            text.append(random.nextInt(100000)).append('\n');
+        }
+        byte[] data = text.toString().getBytes("UTF-8");
+        FileUtils.writeByteArrayToFile(new File(content, "big.log"), data);
+        Map<String, String> artifacts = Collections.singletonMap("big.log", "big.log");
+
+        for (int threads : new int[] {1, 4}) {
+            ZipStorage.delete(archive);
+            archive(artifacts, ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(threads));
+            ZipIndex.Entry entry = ZipIndex.of(archive).entry("big.log");
+            assertEquals(3, entry.seekPoints.length);
+
+            for (long offset : new long[] {10, 100, ZipWriter.SEEK_INTERVAL - 1, ZipWriter.SEEK_INTERVAL, 2 * ZipWriter.SEEK_INTERVAL + 7, data.length - 10}) {
+                try (InputStream in = zs.child("big.log").open()) {
+                    byte[] read = new byte[10];
+                    IOUtils.readFully(in, read);
+                    long position = read.length;
+                    while (position < offset) {
+                        position += in.skip(offset - position);
+                    }
+                    read = new byte[(int) Math.min(1000, data.length - offset)];
+                    IOUtils.readFully(in, read);
+                    assertArrayEquals(threads + " threads, offset " + offset, Arrays.copyOfRange(data, (int) offset, (int) offset + read.length), read);
+                    assertEquals(data.length - offset - read.length, IOUtils.toByteArray(in).length);
+                }
+            }
+            try (InputStream in = zs.child("big.log").open()) {
+                assertArrayEquals(data, IOUtils.toByteArray(in));
+            }
+        }
+    }
+
+    @Test
+    public void deduplicateAcrossArchives() throws Exception {
+        File blobs = tmp.newFolder();
+        System.setProperty(BlobStore.class.getName() + ".root", blobs.getPath());
+        byte[] big = new byte[(int) BlobStore.MIN_SIZE + 1000];
+        new Random(5).nextBytes(big);
+        FileUtils.writeByteArrayToFile(new File(content, "big.bin"), big);
+        FileUtils.writeStringToFile(new File(content, "small.txt"), "small");
+        Map<String, String> artifacts = new HashMap<>();
+        artifacts.put("big.bin", "big.bin");
+        artifacts.put("small.txt", "small.txt");
+
+        archive(artifacts, ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(1).withDeduplicate(true));
+        File otherArchive = new File(tmp.getRoot(), "other.zip");
+        BuildListener l = new StreamBuildListener(System.out, Charset.defaultCharset());
+        ArchiveOptions parallel = ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(4).withDeduplicate(true);
+        ZipStorage.archive(otherArchive, null, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts, parallel);
+        // Archived again, replacing the previous reference
+        ZipStorage.archive(otherArchive, null, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts, parallel);
+        VirtualFile other = ZipStorage.root(otherArchive);
+
+        assertEquals(1, FileUtils.listFiles(blobs, new String[] {"zip"}, true).size());
+        assertTrue(archive.length() < BlobStore.MIN_SIZE);
+        assertTrue(otherArchive.length() < BlobStore.MIN_SIZE);
+        assertTrue(ZipIndex.of(archive).entry("big.bin").blob);
+        assertFalse(ZipIndex.of(archive).entry("small.txt").blob);
+        assertEquals(big.length, zs.child("big.bin").length());
+        for (VirtualFile root : new VirtualFile[] {zs, other}) {
+            try (InputStream in = root.child("big.bin").open()) {
+                assertArrayEquals(big, IOUtils.toByteArray(in));
+            }
+            assertEquals("small", read(root.child("small.txt")));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        zs.zip(out, "**", null, true, "");
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (entry.getName().equals("big.bin")) {
+                    assertArrayEquals(big, IOUtils.toByteArray(in));
+                }
+            }
+        }
+
+        assertTrue(ZipStorage.delete(archive));
+        try (InputStream in = other.child("big.bin").open()) {
+            assertArrayEquals(big, IOUtils.toByteArray(in));
+        }
+        assertTrue(ZipStorage.delete(otherArchive));
+        assertEquals(0, FileUtils.listFiles(blobs, new String[] {"zip", "refs"}, true).size());
+    }
+
+    @Test
+    public void blobsAreHashedBeforeBeingStored() throws Exception {
+        System.setProperty(BlobStore.class.getName() + ".root", new File(tmp.getRoot(), "blobs").getPath());
+        byte[] big = new byte[(int) BlobStore.MIN_SIZE + 1000];
+        new Random(7).nextBytes(big);
+        FileUtils.writeByteArrayToFile(new File(content, "big.bin"), big);
+        archive(Collections.singletonMap("big.bin", "big.bin"));
+        ZipIndex index = ZipIndex.of(archive);
+        ZipIndex.Entry entry = index.entry("big.bin");
+        byte[] other = big.clone();
+        other[0]++;
+        String wrong = ContentHasher.hex(ContentHasher.sha256().digest(other));
+        try {
+            BlobStore.store(wrong, index, entry);
+            fail();
+        } catch (IOException x) {
+            // expected
+        }
+        assertFalse(BlobStore.exists());
+        String hash = ContentHasher.hex(ContentHasher.sha256().digest(big));
+        BlobStore.store(hash, index, entry);
+        BlobStore.settle(Collections.singletonList(hash));
+        assertTrue(BlobStore.exists());
+    }
+
+    @Test
+    public void sweepBlobsOfDeletedBuilds() throws Exception {
+        File blobs = tmp.newFolder();
+        System.setProperty(BlobStore.class.getName() + ".root", blobs.getPath());
+        byte[] big = new byte[(int) BlobStore.MIN_SIZE + 1000];
+        new Random(9).nextBytes(big);
+        FileUtils.writeByteArrayToFile(new File(content, "big.bin"), big);
+        Map<String, String> artifacts = Collections.singletonMap("big.bin", "big.bin");
+        ArchiveOptions options = ArchiveOptions.DEFAULT.withDeduplicate(true);
+        archive(artifacts, options);
+        File otherArchive = new File(tmp.getRoot(), "other.zip");
+        BuildListener l = new StreamBuildListener(System.out, Charset.defaultCharset());
+        ZipStorage.archive(otherArchive, null, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts, options);
+        String hash = ContentHasher.hex(ContentHasher.sha256().digest(big));
+        File references = new File(blobs, hash.substring(0, 2) + File.separator + hash + ".refs");
+        assertEquals("2", FileUtils.readFileToString(references));
+
+        // As when the whole job is deleted
+        assertTrue(otherArchive.delete());
+        BlobStore.beginSweep();
+        Map<String, Long> counts = new HashMap<>();
+        BlobStore.count(archive, counts);
+        BlobStore.count(otherArchive, counts);
+        assertEquals(Collections.singletonMap(hash, 1L), counts);
+        assertEquals(0, BlobStore.sweep(counts));
+        assertEquals("1", FileUtils.readFileToString(references));
+
+        // Blobs referred to since the count started are left alone
+        BlobStore.beginSweep();
+        ZipStorage.archive(otherArchive, null, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts, options);
+        assertEquals(0, BlobStore.sweep(Collections.emptyMap()));
+        assertEquals("2", FileUtils.readFileToString(references));
+
+        assertTrue(archive.delete());
+        assertTrue(otherArchive.delete());
+        BlobStore.beginSweep();
+        assertEquals(1, BlobStore.sweep(Collections.emptyMap()));
+        assertEquals(0, FileUtils.listFiles(blobs, new String[] {"zip", "refs"}, true).size());
+    }
+
+    @Test
+    public void reuseUnchangedFromPreviousArchive() throws Exception {
+        String text = "unchanged line\n".repeat((int) BlobStore.MIN_SIZE / 10);
+        FileUtils.writeStringToFile(new File(content, "same.txt"), text);
+        FileUtils.writeStringToFile(new File(content, "changed.txt"), text);
+        FileUtils.writeStringToFile(new File(content, "small.txt"), "small");
+        Map<String, String> artifacts = new HashMap<>();
+        artifacts.put("same.txt", "same.txt");
+        artifacts.put("changed.txt", "changed.txt");
+        artifacts.put("small.txt", "small.txt");
+        File previous = new File(tmp.getRoot(), "previous.zip");
+        BuildListener l = new StreamBuildListener(System.out, Charset.defaultCharset());
+        ZipStorage.archive(previous, null, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts,
+                ArchiveOptions.DEFAULT.withCompression(CompressingArtifactManagerFactory.Compression.STORE).withStoredExtensions("").withThreads(1).withReuseUnchanged(true));
+
+        FileUtils.writeStringToFile(new File(content, "changed.txt"), text + "changed");
+        ZipStorage.archive(archive, previous, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts,
+                ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(1).withReuseUnchanged(true));
+
+        ZipIndex index = ZipIndex.of(archive);
+        // Copied as stored in the previous archive rather than compressed again
+        assertEquals(ZipIndex.STORED, index.entry("same.txt").method);
+        assertNotNull(index.entry("same.txt").hash);
+        assertFalse(index.entry("same.txt").blob);
+        assertEquals(ZipIndex.DEFLATED, index.entry("changed.txt").method);
+        assertEquals(text, read(zs.child("same.txt")));
+        assertEquals(text + "changed", read(zs.child("changed.txt")));
+        assertEquals("small", read(zs.child("small.txt")));
+    }
+
+    @Test
+    public void dictionaryForSmallFiles() throws Exception {
+        Random random = new Random(7);
+        Map<String, String> artifacts = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            FileUtils.writeStringToFile(new File(content, "reports/TEST-" + i + ".xml"), "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<testsuite name=\"org.example.Suite" + i + "\" tests=\"" + random.nextInt(50) + "\" failures=\"0\" errors=\"0\" skipped=\"0\">\n"
+                    + "  <properties>\n    <property name=\"java.vendor\" value=\"Eclipse Adoptium\"/>\n  </properties>\n"
+                    + "  <testcase name=\"test" + random.nextInt() + "\" classname=\"org.example.Suite" + i + "\" time=\"0." + random.nextInt(1000) + "\"/>\n"
+                    + "</testsuite>\n");
+            artifacts.put("reports/TEST-" + i + ".xml", "reports/TEST-" + i + ".xml");
+        }
+        File previous = new File(tmp.getRoot(), "previous.zip");
+        BuildListener l = new StreamBuildListener(System.out, Charset.defaultCharset());
+        ZipStorage.archive(previous, null, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts, ArchiveOptions.DEFAULT);
+
+        for (int threads : new int[] {1, 4}) {
+            ZipStorage.archive(archive, previous, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts,
+                    ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(threads).withDictionary(true));
+            assertTrue(DeflateDictionary.file(archive).isFile());
+            ZipIndex index = ZipIndex.of(archive);
+            long compressed = 0;
+            for (ZipIndex.Entry entry : index.entries()) {
+                assertEquals(ZipIndex.DEFLATED_WITH_DICTIONARY, entry.method);
+                compressed += entry.compressedSize;
+            }
+            long without = 0;
+            for (ZipIndex.Entry entry : ZipIndex.of(previous).entries()) {
+                without += entry.compressedSize;
+            }
+            assertTrue(compressed + " vs. " + without, compressed < without / 2);
+            for (int i = 0; i < 200; i += 17) {
+                assertEquals(FileUtils.readFileToString(new File(content, "reports/TEST-" + i + ".xml")), read(zs.child("reports/TEST-" + i + ".xml")));
+            }
+
+            // Downloads come without the dictionary, so are compressed again
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(200, zs.zip(out, "**", null, true, ""));
+            try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                ZipEntry entry;
+                int count = 0;
+                while ((entry = in.getNextEntry()) != null) {
+                    assertEquals(FileUtils.readFileToString(new File(content, entry.getName())), IOUtils.toString(in));
+                    count++;
+                }
+                assertEquals(200, count);
+            }
+            assertTrue(ZipStorage.delete(archive));
+            assertFalse(DeflateDictionary.file(archive).exists());
+        }
+    }
+
+    @Test
+    public void solidBlocks() throws Exception {
+        Random random = new Random(9);
+        Map<String, String> artifacts = new LinkedHashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            FileUtils.writeStringToFile(new File(content, "reports/TEST-" + i + ".xml"), "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<testsuite name=\"org.example.Suite" + i + "\" tests=\"" + random.nextInt(50) + "\" failures=\"0\" errors=\"0\" skipped=\"0\">\n"
+                    + "  <properties>\n    <property name=\"java.vendor\" value=\"Eclipse Adoptium\"/>\n  </properties>\n"
+                    + "  <testcase name=\"test" + random.nextInt() + "\" classname=\"org.example.Suite" + i + "\" time=\"0." + random.nextInt(1000) + "\"/>\n"
+                    + "</testsuite>\n");
+            artifacts.put("reports/TEST-" + i + ".xml", "reports/TEST-" + i + ".xml");
+        }
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 100000) {
+            big.append(random.nextLong()).append('\n');
+        }
+        FileUtils.writeStringToFile(new File(content, "big.log"), big.toString());
+        artifacts.put("big.log", "big.log");
+        String original = FileUtils.readFileToString(new File(content, "reports/TEST-5.xml"));
+        archive(artifacts);
+        long separately = 0;
+        for (ZipIndex.Entry entry : ZipIndex.of(archive).entries()) {
+            separately += entry.compressedSize;
+        }
+        ZipStorage.delete(archive);
+
+        for (ArchiveOptions options : new ArchiveOptions[] {
+                ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(1).withSolid(true),
+                ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(4).withSolid(true),
+                ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(1).withDeduplicate(true).withSolid(true)}) {
+            archive(artifacts, options);
+            ZipIndex index = ZipIndex.of(archive);
+            int blocks = 0;
+            long together = 0;
+            for (ZipIndex.Entry entry : index.entries()) {
+                if (entry.block) {
+                    blocks++;
+                } else if (!entry.name.equals("big.log")) {
+                    assertEquals(ZipIndex.SOLID, entry.method);
+                }
+                together += entry.compressedSize;
+            }
+            assertTrue(blocks > 1);
+            assertTrue(together + " vs. " + separately, together < separately * 0.6);
+            assertArrayEquals(new String[] {"big.log", "reports"}, names(zs.list()));
+            assertEquals(5000, zs.child("reports").list().length);
+            for (int i = 0; i < 5000; i += 97) {
+                VirtualFile f = zs.child("reports/TEST-" + i + ".xml");
+                assertEquals(FileUtils.readFileToString(new File(content, "reports/TEST-" + i + ".xml")), read(f));
+                assertEquals(new File(content, "reports/TEST-" + i + ".xml").length(), f.length());
+            }
+
+            // Appending leaves existing blocks where they are
+            FileUtils.writeStringToFile(new File(content, "reports/TEST-5.xml"), "changed");
+            archive(Collections.singletonMap("reports/TEST-5.xml", "reports/TEST-5.xml"), options);
+            assertEquals("changed", read(zs.child("reports/TEST-5.xml")));
+            assertEquals(FileUtils.readFileToString(new File(content, "reports/TEST-6.xml")), read(zs.child("reports/TEST-6.xml")));
+
+            // Downloads have each file on its own
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(5000, zs.zip(out, "reports/**", null, true, ""));
+            try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    assertEquals(FileUtils.readFileToString(new File(content, entry.getName())), IOUtils.toString(in));
+                }
+            }
+            assertTrue(ZipStorage.delete(archive));
+            FileUtils.writeStringToFile(new File(content, "reports/TEST-5.xml"), original);
+        }
+    }
+
+    @Test
+    public void cacheSmallEntries() throws Exception {
+        FileUtils.writeStringToFile(new File(content, "index.html"), "<html>one</html>");
+        content.mkdirs();
+        try (OutputStream out = new FileOutputStream(new File(content, "big.bin"))) {
+            out.write(new byte[ZipIndex.CONTENT_CACHE_FILE_SIZE + 1]);
+        }
+        Map<String, String> artifacts = new HashMap<>();
+        artifacts.put("index.html", "index.html");
+        artifacts.put("big.bin", "big.bin");
+        archive(artifacts);
+
+        WeightedCache<?> cache = ZipIndex.contentCache();
+        long hits = cache.hits();
+        long misses = cache.misses();
+        assertEquals("<html>one</html>", read(zs.child("index.html")));
+        assertEquals("<html>one</html>", read(zs.child("index.html")));
+        assertEquals(misses + 1, cache.misses());
+        assertEquals(hits + 1, cache.hits());
+        try (InputStream in = zs.child("big.bin").open()) {
+            assertEquals(ZipIndex.CONTENT_CACHE_FILE_SIZE + 1, IOUtils.toByteArray(in).length);
+        }
+        assertEquals(misses + 1, cache.misses());
+
+        // Archiving again drops what was cached of the previous revision
+        FileUtils.writeStringToFile(new File(content, "index.html"), "<html>two</html>");
+        archive(Collections.singletonMap("index.html", "index.html"));
+        assertEquals("<html>two</html>", read(zs.child("index.html")));
+        assertTrue(ZipStorage.delete(archive));
+        assertFalse(zs.child("index.html").exists());
+    }
+
+    @Test
+    public void weightedCacheEvictsLeastRecentlyUsed() throws Exception {
+        WeightedCache<String> cache = new WeightedCache<>(10);
+        cache.get("a", () -> new byte[4]);
+        cache.get("b", () -> new byte[4]);
+        cache.get("a", () -> new byte[4]);
+        cache.get("c", () -> new byte[4]);
+        assertEquals(8, cache.weight());
+        assertEquals(1, cache.hits());
+        cache.get("a", () -> new byte[4]);
+        assertEquals(2, cache.hits());
+        cache.get("b", () -> new byte[4]);
+        assertEquals(2, cache.hits());
+        cache.get("d", () -> new byte[11]);
+        assertEquals(8, cache.weight());
+        cache.invalidate(k -> k.equals("a"));
+        assertEquals(4, cache.weight());
+    }
+
+    @Test
+    public void weightedCacheDropsValuesLoadedWhileInvalidating() throws Exception {
+        WeightedCache<String> cache = new WeightedCache<>(10);
+        byte[] stale = cache.get("a", () -> {
+            cache.invalidate(k -> k.equals("a"));
+            return new byte[4];
+        });
+        assertEquals(4, stale.length);
+        assertEquals(0, cache.weight());
+        cache.get("a", () -> new byte[4]);
+        assertEquals(4, cache.weight());
+    }
+
+    @Test
+    public void indexFile() throws Exception {
+        Map<String, String> artifacts = new LinkedHashMap<>();
+        for (String name : new String[] {"a/b/c.txt", "a/b/d.txt", "a/e.txt", "f.txt", "g/h/i/j.txt", "\u00e9t\u00e9.txt", "z.txt"}) {
+            FileUtils.writeStringToFile(new File(content, name), name);
+            artifacts.put(name, name);
+        }
+        new File(content, "empty").mkdirs();
+        artifacts.put("empty", "empty");
+        archive(artifacts, ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(1).withSolid(true));
+        assertTrue(IndexFile.file(archive).isFile());
+        BasicFileAttributes attributes = Files.readAttributes(archive.toPath(), BasicFileAttributes.class);
+        IndexFile indexFile = IndexFile.open(archive, attributes);
+        assertNotNull(indexFile);
+
+        IndexFile.ENABLED = false;
+        ZipIndex.invalidate(archive);
+        ZipIndex parsed = ZipIndex.of(archive);
+        assertEquals(parsed.size(), indexFile.size());
+        Iterator<ZipIndex.Entry> it = indexFile.entries().iterator();
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            for (ZipIndex.Entry entry : parsed.entries()) {
+                ZipIndex.Entry other = it.next();
+                // Recorded so that opening an entry need not read its local header
+                assertEquals(ZipIndex.dataOffset(channel, entry), other.dataOffset);
+                assertEquals(entry.name, other.name);
+                assertEquals(entry.crc, other.crc);
+                assertEquals(entry.size, other.size);
+                assertEquals(entry.time, other.time);
+                assertEquals(entry.externalAttributes, other.externalAttributes);
+                assertEquals(entry.localHeaderOffset, other.localHeaderOffset);
+                assertEquals(entry.blockPosition, other.blockPosition);
+                assertEquals(entry.block, other.block);
+                if (entry.block) {
+                    assertNull(parsed.entry(entry.name));
+                    assertTrue(indexFile.entry(entry.name).block);
+                    assertEquals(entry.name, indexFile.block(entry.localHeaderOffset).name);
+                } else {
+                    assertEquals(entry.name, indexFile.entry(entry.name).name);
+                }
+            }
+        }
+        for (String dir : new String[] {"", "a/", "a/b/", "g/", "g/h/", "g/h/i/", "empty/", "f.txt/", "nonexistent/"}) {
+            assertEquals(dir, parsed.isDirectory(dir), indexFile.isDirectory(dir));
+            assertEquals(dir, parsed.list(dir), parsed.isDirectory(dir) ? indexFile.list(dir) : Collections.emptyList());
+        }
+        assertNull(indexFile.entry("a/b"));
+        assertNull(indexFile.entry("zz.txt"));
+
+        // Archiving without writing the index makes the one there be ignored
+        archive(Collections.singletonMap("z.txt", "a/e.txt"));
+        assertNull(IndexFile.open(archive, Files.readAttributes(archive.toPath(), BasicFileAttributes.class)));
+        ZipIndex.invalidate(archive);
+        assertEquals("a/e.txt", read(zs.child("z.txt")));
+        assertEquals("a/b/c.txt", read(zs.child("a/b/c.txt")));
+        assertTrue(ZipStorage.delete(archive));
+        assertFalse(IndexFile.file(archive).exists());
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        ArtifactMetrics metrics = new ArtifactMetrics();
+        long archives = metrics.getArchiveCount();
+        long archived = metrics.getBytesArchived();
+        long opens = metrics.getArchiveOpens();
+        long streams = metrics.getOpenStreams();
+        FileUtils.writeStringToFile(new File(content, "a.txt"), "hello world");
+        archive(Collections.singletonMap("a.txt", "a.txt"));
+        assertEquals(archives + 1, metrics.getArchiveCount());
+        assertEquals(archived + 11, metrics.getBytesArchived());
+        try (InputStream is = zs.child("a.txt").open()) {
+            assertEquals(streams + 1, metrics.getOpenStreams());
+        }
+        assertEquals(streams, metrics.getOpenStreams());
+        assertTrue(metrics.getArchiveOpens() > opens);
+    }
+
+    @Test
+    public void metricsLeaveOutDeduplicatedArtifacts() throws Exception {
+        System.setProperty(BlobStore.class.getName() + ".root", tmp.newFolder().getPath());
+        byte[] big = new byte[(int) BlobStore.MIN_SIZE + 1000];
+        new Random(11).nextBytes(big);
+        FileUtils.writeByteArrayToFile(new File(content, "big.bin"), big);
+        FileUtils.writeStringToFile(new File(content, "small.txt"), "small");
+        Map<String, String> artifacts = new HashMap<>();
+        artifacts.put("big.bin", "big.bin");
+        artifacts.put("small.txt", "small.txt");
+        ArtifactMetrics metrics = new ArtifactMetrics();
+        long archived = metrics.getBytesArchived();
+        long finishes = ArtifactMetrics.finish.count();
+        archive(artifacts, ArchiveOptions.DEFAULT.withDeduplicate(true));
+        assertEquals(archived + 5, metrics.getBytesArchived());
+        assertEquals(finishes + 1, ArtifactMetrics.finish.count());
+    }
+
+    @Test
+    public void archiveOpenedOnlyWhenRead() throws Exception {
+        FileUtils.writeStringToFile(new File(content, "dir/a.txt"), "hello world");
+        archive(Collections.singletonMap("dir/a.txt", "dir/a.txt"));
+        ZipIndex.invalidate(archive);
+        ArtifactMetrics metrics = new ArtifactMetrics();
+        long opens = metrics.getArchiveOpens();
+        // Listing uses the index file
+        assertEquals(1, zs.child("dir").list().length);
+        assertTrue(zs.child("dir/a.txt").isFile());
+        assertEquals(opens, metrics.getArchiveOpens());
+        assertEquals("hello world", read(zs.child("dir/a.txt")));
+        assertEquals("hello world", read(zs.child("dir/a.txt")));
+        assertEquals(opens + 1, metrics.getArchiveOpens());
+    }
+
+    @Test
+    public void openStreamsAreTracked() throws Exception {
+        ArtifactMetrics metrics = new ArtifactMetrics();
+        long leaked = metrics.getLeakedStreams();
+        AtomicBoolean closed = new AtomicBoolean();
+        InputStream in = new ByteArrayInputStream(new byte[1]) {
+            @Override public void close() {
+                closed.set(true);
+            }
+        };
+        InputStream stream = new ByteArrayInputStream(new byte[1]);
+        OpenStreams.Handle handle = OpenStreams.register(stream, archive, "a.txt", in);
+        assertEquals(Collections.singletonMap(archive.getPath(), 1), metrics.getOpenStreamsByArchive());
+        assertEquals(1, metrics.listOpenStreams(archive.getPath()).size());
+        assertTrue(metrics.listOpenStreams(archive.getPath()).get(0).startsWith("a.txt in "));
+
+        // As the cleaner does once the stream is collected without having been closed
+        handle.run();
+        assertTrue(closed.get());
+        assertEquals(leaked + 1, metrics.getLeakedStreams());
+        assertEquals(Collections.emptyMap(), metrics.getOpenStreamsByArchive());
+        handle.close();
+        assertEquals(leaked + 1, metrics.getLeakedStreams());
+
+        handle = OpenStreams.register(stream, archive, "b.txt", in);
+        handle.close();
+        handle.run();
+        assertEquals(leaked + 1, metrics.getLeakedStreams());
+        assertEquals(Collections.emptyMap(), metrics.getOpenStreamsByArchive());
+    }
+
+    @Test
+    public void leakedStreamsAreClosed() throws Exception {
+        FileUtils.writeStringToFile(new File(content, "a.txt"), "hello world");
+        archive(Collections.singletonMap("a.txt", "a.txt"));
+        ArtifactMetrics metrics = new ArtifactMetrics();
+        long leaked = metrics.getLeakedStreams();
+        InputStream is = zs.child("a.txt").open();
+        assertEquals(1, metrics.listOpenStreams(archive.getPath()).size());
+        is = null;
+        for (int i = 0; i < 20 && metrics.getLeakedStreams() == leaked; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        // Collection is up to the JVM
+        assumeTrue("stream not collected", metrics.getLeakedStreams() > leaked);
+        assertEquals(Collections.emptyList(), metrics.listOpenStreams(archive.getPath()));
+    }
+
+    @Test
+    public void parallelCompression() throws Exception {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(1);
+        while (text.length() < 5 * 1024 * 1024) {
+            text.append(random.nextInt(100000)).append('\n');
+        }
+        FileUtils.writeStringToFile(new File(content, "big.log"), text.toString());
+        Map<String, String> artifacts = new HashMap<>();
+        artifacts.put("big.log", "big.log");
+        for (int i = 0; i < 50; i++) {
+            FileUtils.writeStringToFile(new File(content, "small/" + i), "small " + i);
+            artifacts.put("small/" + i, "small/" + i);
+        }
+        FileUtils.writeStringToFile(new File(content, "empty"), "");
+        artifacts.put("empty", "empty");
+
+        archive(artifacts, ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(1));
+        long sequential = ZipIndex.of(archive).entry("big.log").compressedSize;
+        ZipStorage.delete(archive);
+        archive(artifacts, ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(4));
+        long parallel = ZipIndex.of(archive).entry("big.log").compressedSize;
+
+        assertEquals(text.toString(), read(zs.child("big.log")));
+        for (int i = 0; i < 50; i++) {
+            assertEquals("small " + i, read(zs.child("small/" + i)));
+        }
+        assertEquals("", read(zs.child("empty")));
+        assertTrue("chunks primed with a dictionary compress about as well: " + parallel + " vs " + sequential, parallel < sequential * 1.01);
+    }
+
+    private static String[] names(VirtualFile[] files) {
+        String[] names = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            names[i] = files[i].getName();
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void shardedStorage() throws Exception {
+        Map<String, String> artifacts = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            String name = "dir" + i % 3 + "/file" + i + ".txt";
+            FileUtils.writeStringToFile(new File(content, name), name);
+            artifacts.put(name, name);
+        }
+        BuildListener l = new StreamBuildListener(System.out, Charset.defaultCharset());
+        ArchiveOptions options = ArchiveOptions.DEFAULT.withStoredExtensions("").withThreads(1).withShards(4);
+        ShardedStorage.archive(archive, null, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts, options);
+        assertEquals(4, ShardedStorage.shards(archive));
+        assertFalse(archive.exists());
+        for (int i = 0; i < 4; i++) {
+            ZipIndex index = ZipIndex.of(ShardedStorage.shard(archive, i));
+            assertNotNull(index);
+            assertTrue(index.size() < 100);
+        }
+
+        VirtualFile root = ShardedStorage.root(archive, 4);
+        assertTrue(root.isDirectory());
+        List<String> names = new ArrayList<>();
+        for (VirtualFile child : root.list()) {
+            names.add(child.getName());
+            assertTrue(child.isDirectory());
+        }
+        Collections.sort(names);
+        assertEquals(Arrays.asList("dir0", "dir1", "dir2"), names);
+        VirtualFile dir = root.child("dir1");
+        assertTrue(dir.isDirectory());
+        assertEquals(33, dir.list().length);
+        VirtualFile file = dir.child("file4.txt");
+        assertTrue(file.isFile());
+        assertEquals("dir1/file4.txt", read(file));
+        assertEquals("dir1/file4.txt".length(), file.length());
+        assertEquals("dir1", file.getParent().getName());
+        assertFalse(root.child("dir1/file5.txt").exists());
+        assertEquals(100, root.list("**/*.txt", null, true).size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(33, dir.zip(out, "**", null, true, "bundle"));
+        int count = 0;
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                assertEquals(entry.getName().replace("bundle/", "dir1/"), new String(IOUtils.toByteArray(in), "UTF-8"));
+                count++;
+            }
+        }
+        assertEquals(33, count);
+
+        // Files added later go to the archive they hashed to before
+        FileUtils.writeStringToFile(new File(content, "dir0/file0.txt"), "changed");
+        ShardedStorage.archive(archive, null, new FilePath(content), new Launcher.LocalLauncher(l), l, Collections.singletonMap("dir0/file0.txt", "dir0/file0.txt"), ArchiveOptions.DEFAULT);
+        assertEquals("changed", read(root.child("dir0/file0.txt")));
+        assertEquals(100, root.list("**", null, true).size());
+
+        // Directories are listed from the manifest alone
+        for (int i = 0; i < 4; i++) {
+            ZipIndex.invalidate(ShardedStorage.shard(archive, i));
+            assertTrue(ShardedStorage.shard(archive, i).renameTo(new File(tmp.getRoot(), "moved" + i)));
+        }
+        assertEquals(33, root.child("dir1").list().length);
+        assertTrue(root.child("dir2/").isDirectory());
+        assertTrue(root.child("dir1/file4.txt").isFile());
+        assertFalse(root.child("dir1/file5.txt").exists());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(new File(tmp.getRoot(), "moved" + i).renameTo(ShardedStorage.shard(archive, i)));
+        }
+
+        assertTrue(CompressingArtifactManager.delete(archive));
+        assertFalse(ShardedStorage.manifest(archive).exists());
+        for (int i = 0; i < 4; i++) {
+            assertFalse(ShardedStorage.shard(archive, i).exists());
+        }
+
+        // Failing to write one archive leaves no manifest, and the archives written meanwhile are deleted along with the build
+        Map<String, String> missing = new LinkedHashMap<>(artifacts);
+        missing.put("missing.txt", "missing.txt");
+        try {
+            ShardedStorage.archive(archive, null, new FilePath(content), new Launcher.LocalLauncher(l), l, missing, options);
+            fail();
+        } catch (IOException x) {
+            // expected
+        }
+        assertFalse(ShardedStorage.manifest(archive).exists());
+        assertEquals(0, ShardedStorage.shards(archive));
+        assertFalse(CompressingArtifactManager.root(archive).child("dir0/file0.txt").exists());
+        // Some archives may not have been started at all before the failure
+        CompressingArtifactManager.delete(archive);
+        assertEquals(Collections.emptyList(), ShardedStorage.shardFiles(archive));
+        for (int i = 0; i < 4; i++) {
+            assertFalse(ShardedStorage.shard(archive, i).exists());
+        }
+    }
+
     private void archive(Map<String, String> artifacts) throws Exception {
+        archive(artifacts, ArchiveOptions.DEFAULT);
+    }
+
+    private void archive(Map<String, String> artifacts, ArchiveOptions options) throws Exception {
         BuildListener l = new StreamBuildListener(System.out, Charset.defaultCharset());
-        ZipStorage.archive(archive, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts);
+        ZipStorage.archive(archive, null, new FilePath(content), new Launcher.LocalLauncher(l), l, artifacts, options);
     }
 }